@@ -17,13 +17,14 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.softmeth.androidphotos.adapters.PhotoAdapter;
-import com.softmeth.androidphotos.data.DataManager;
+import com.softmeth.androidphotos.data.AlbumRepository;
 import com.softmeth.androidphotos.models.Album;
 import com.softmeth.androidphotos.models.Photo;
 
 import java.util.List;
 
-public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnPhotoClickListener {
+public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnPhotoClickListener,
+        AlbumRepository.OnAlbumsChangedListener {
 
     public static final String EXTRA_ALBUM_NAME = "album_name";
     public static final String EXTRA_ALBUM_POSITION = "album_position";
@@ -33,7 +34,7 @@ public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnP
     private TextView emptyView;
     private Album album;
     private int albumPosition;
-    private List<Album> albums;
+    private AlbumRepository repository;
 
     private ActivityResultLauncher<String> pickImageLauncher;
 
@@ -46,8 +47,9 @@ public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnP
         String albumName = getIntent().getStringExtra(EXTRA_ALBUM_NAME);
         albumPosition = getIntent().getIntExtra(EXTRA_ALBUM_POSITION, -1);
 
-        // Load albums
-        albums = DataManager.loadAlbums(this);
+        // Look up the album in the shared library
+        repository = AlbumRepository.getInstance(this);
+        List<Album> albums = repository.getAlbums();
         if (albumPosition >= 0 && albumPosition < albums.size()) {
             album = albums.get(albumPosition);
         } else {
@@ -85,26 +87,35 @@ public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnP
 
         // Set up FAB click listener
         fabAddPhoto.setOnClickListener(v -> pickImageLauncher.launch("image/*"));
+
+        repository.addListener(this);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Save albums when leaving
-        DataManager.saveAlbums(this, albums);
+        // Push queued edits to disk when leaving
+        repository.flush();
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        // Reload albums in case tags were modified
-        albums = DataManager.loadAlbums(this);
-        if (albumPosition >= 0 && albumPosition < albums.size()) {
-            album = albums.get(albumPosition);
-            adapter.setPhotos(album.getPhotos());
+    protected void onDestroy() {
+        super.onDestroy();
+        if (repository != null) {
+            repository.removeListener(this);
         }
     }
 
+    @Override
+    public void onAlbumsChanged() {
+        if (!repository.getAlbums().contains(album)) {
+            finish();
+            return;
+        }
+        adapter.setPhotos(album.getPhotos());
+        updateEmptyView();
+    }
+
     private void updateEmptyView() {
         if (album.getPhotos().isEmpty()) {
             recyclerView.setVisibility(View.GONE);
@@ -131,10 +142,7 @@ public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnP
         Photo photo = new Photo(uri, fileName);
 
         // Add to album
-        if (album.addPhoto(photo)) {
-            adapter.setPhotos(album.getPhotos());
-            updateEmptyView();
-            DataManager.saveAlbums(this, albums);
+        if (repository.addPhoto(album, photo)) {
             Toast.makeText(this, "Photo added", Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(this, "Photo already in album", Toast.LENGTH_SHORT).show();
@@ -194,10 +202,7 @@ public class AlbumActivity extends AppCompatActivity implements PhotoAdapter.OnP
         builder.setMessage("Delete " + photo.getFileName() + "?");
 
         builder.setPositiveButton("Delete", (dialog, which) -> {
-            album.removePhoto(photo);
-            adapter.setPhotos(album.getPhotos());
-            updateEmptyView();
-            DataManager.saveAlbums(this, albums);
+            repository.removePhoto(album, photo);
             Toast.makeText(this, "Photo deleted", Toast.LENGTH_SHORT).show();
         });
 
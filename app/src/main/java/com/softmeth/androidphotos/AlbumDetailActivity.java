@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -18,13 +19,15 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.softmeth.androidphotos.adapters.PhotoAdapter;
-import com.softmeth.androidphotos.data.DataManager;
+import com.softmeth.androidphotos.data.AlbumRepository;
+import com.softmeth.androidphotos.data.PhotoImporter;
 import com.softmeth.androidphotos.models.Album;
 import com.softmeth.androidphotos.models.Photo;
 
 import java.util.List;
 
-public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapter.OnPhotoClickListener {
+public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapter.OnPhotoClickListener,
+        AlbumRepository.OnAlbumsChangedListener {
 
     public static final String EXTRA_ALBUM_NAME = "album_name";
     public static final String EXTRA_PHOTO_POSITION = "photo_position";
@@ -33,9 +36,14 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
     private RecyclerView recyclerView;
     private PhotoAdapter adapter;
     private TextView emptyView;
-    private List<Album> allAlbums;
+    private AlbumRepository repository;
     
-    private ActivityResultLauncher<String> pickImageLauncher;
+    private ActivityResultLauncher<String[]> pickImagesLauncher;
+    private PhotoImporter importer;
+    private PhotoImporter.Batch importBatch;  // Attached to this screen, or null
+    private AlertDialog importDialog;
+    private ProgressBar importProgressBar;
+    private TextView importProgressText;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,9 +57,9 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
             return;
         }
 
-        // Load all albums and find this album
-        allAlbums = DataManager.loadAlbums(this);
-        album = findAlbumByName(albumName);
+        // Find this album in the shared library
+        repository = AlbumRepository.getInstance(this);
+        album = repository.findAlbumByName(albumName);
         if (album == null) {
             Toast.makeText(this, "Album not found", Toast.LENGTH_SHORT).show();
             finish();
@@ -79,25 +87,68 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
 
         updateEmptyView();
 
-        // Set up photo picker
-        pickImageLauncher = registerForActivityResult(
-            new ActivityResultContracts.GetContent(),
-            uri -> {
-                if (uri != null) {
-                    addPhotoToAlbum(uri);
+        // Set up photo picker; documents opened this way can keep their permission
+        pickImagesLauncher = registerForActivityResult(
+            new ActivityResultContracts.OpenMultipleDocuments(),
+            uris -> {
+                if (uris != null && !uris.isEmpty()) {
+                    importPhotos(uris);
                 }
             }
         );
 
         // Set up FAB
-        fabAddPhoto.setOnClickListener(v -> pickImageLauncher.launch("image/*"));
+        fabAddPhoto.setOnClickListener(v -> pickImagesLauncher.launch(new String[]{"image/*"}));
+
+        repository.addListener(this);
+
+        // An import started before a rotation is still running, or has
+        // finished without anyone seeing the result
+        importer = PhotoImporter.getInstance(this);
+        PhotoImporter.Batch batch = importer.getBatch();
+        if (batch != null && batch.getAlbum() == album && !batch.isDelivered() && !batch.isCancelled()) {
+            attachImport(batch);
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Save albums when leaving
-        DataManager.saveAlbums(this, allAlbums);
+        // Push queued edits to disk when leaving
+        repository.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (repository != null) {
+            repository.removeListener(this);
+        }
+        if (importBatch != null) {
+            importBatch.setListener(null);
+            if (isFinishing()) {
+                // Leaving the album abandons the import
+                importBatch.cancel();
+            }
+        }
+        if (importDialog != null) {
+            importDialog.dismiss();
+            importDialog = null;
+        }
+    }
+
+    @Override
+    public void onAlbumsChanged() {
+        if (!repository.getAlbums().contains(album)) {
+            // Album was deleted elsewhere
+            finish();
+            return;
+        }
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setTitle(album.getName());
+        }
+        adapter.setPhotos(album.getPhotos());
+        updateEmptyView();
     }
 
     @Override
@@ -115,15 +166,6 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
         return super.onOptionsItemSelected(item);
     }
 
-    private Album findAlbumByName(String name) {
-        for (Album a : allAlbums) {
-            if (a.getName().equals(name)) {
-                return a;
-            }
-        }
-        return null;
-    }
-
     private void updateEmptyView() {
         if (album.getPhotos().isEmpty()) {
             recyclerView.setVisibility(View.GONE);
@@ -134,30 +176,76 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
         }
     }
 
-    private void addPhotoToAlbum(Uri uri) {
-        // Get filename from URI
-        String fileName = uri.getLastPathSegment();
-        if (fileName == null) {
-            fileName = "Photo_" + System.currentTimeMillis();
+    private void importPhotos(List<Uri> uris) {
+        PhotoImporter.Batch batch = importer.importPhotos(album, uris,
+                adapter.getThumbnailWidth(), adapter.getThumbnailHeight(), null);
+        if (batch == null) {
+            Toast.makeText(this, "An import is already running", Toast.LENGTH_SHORT).show();
+            return;
         }
+        attachImport(batch);
+    }
 
-        // Take persistable URI permission
-        try {
-            getContentResolver().takePersistableUriPermission(uri, 
-                Intent.FLAG_GRANT_READ_URI_PERMISSION);
-        } catch (SecurityException e) {
-            // If we can't get persistable permission, the URI might still work
-        }
+    /**
+     * Shows the progress dialog for the batch and listens to it until it
+     * finishes or this screen goes away.
+     */
+    private void attachImport(PhotoImporter.Batch batch) {
+        importBatch = batch;
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_import_progress, null);
+        importProgressBar = dialogView.findViewById(R.id.import_progress_bar);
+        importProgressText = dialogView.findViewById(R.id.import_progress_text);
+        showImportProgress(batch.getDone(), batch.getTotal());
 
-        Photo photo = new Photo(uri, fileName);
-        if (album.addPhoto(photo)) {
-            adapter.setPhotos(album.getPhotos());
-            updateEmptyView();
-            DataManager.saveAlbums(this, allAlbums);
-            Toast.makeText(this, "Photo added", Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, "Photo already in album", Toast.LENGTH_SHORT).show();
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Importing Photos");
+        builder.setView(dialogView);
+        builder.setCancelable(false);
+        builder.setNegativeButton("Cancel", (dialog, which) -> batch.cancel());
+        importDialog = builder.show();
+
+        // Told straight away if the batch finished while detached
+        batch.setListener(new PhotoImporter.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                showImportProgress(done, total);
+            }
+
+            @Override
+            public void onFinished(PhotoImporter.Result result) {
+                importBatch = null;
+                if (importDialog != null) {
+                    importDialog.dismiss();
+                    importDialog = null;
+                }
+                Toast.makeText(AlbumDetailActivity.this, describe(result), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void showImportProgress(int done, int total) {
+        importProgressBar.setMax(total);
+        importProgressBar.setProgress(done);
+        importProgressText.setText(done + " / " + total);
+    }
+
+    private static String describe(PhotoImporter.Result result) {
+        if (result.cancelled) {
+            return "Import cancelled";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(result.added).append(result.added == 1 ? " photo added" : " photos added");
+        if (result.skipped + result.duplicates > 0) {
+            sb.append(", ").append(result.skipped + result.duplicates).append(" already in album");
+        }
+        if (result.similar > 0) {
+            sb.append(", ").append(result.similar).append(result.similar == 1 ? " looks" : " look")
+                    .append(" like a photo already there");
+        }
+        if (result.failed > 0) {
+            sb.append(", ").append(result.failed).append(" could not be read");
         }
+        return sb.toString();
     }
 
     private void showPhotoOptionsDialog(Photo photo, int position) {
@@ -168,7 +256,7 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
         builder.setItems(options, (dialog, which) -> {
             switch (which) {
                 case 0: // View
-                    openPhoto(position);
+                    openPhoto(photo);
                     break;
                 case 1: // Move
                     showMovePhotoDialog(photo, position);
@@ -185,7 +273,7 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
     private void showMovePhotoDialog(Photo photo, int position) {
         // Get list of other albums
         List<Album> otherAlbums = new java.util.ArrayList<>();
-        for (Album a : allAlbums) {
+        for (Album a : repository.getAlbums()) {
             if (!a.equals(album)) {
                 otherAlbums.add(a);
             }
@@ -205,16 +293,10 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
         builder.setTitle("Move to Album");
         builder.setItems(albumNames, (dialog, which) -> {
             Album targetAlbum = otherAlbums.get(which);
-            
-            // Remove from current album
-            album.getPhotos().remove(position);
-            adapter.notifyItemRemoved(position);
-            
-            // Add to target album
-            targetAlbum.addPhoto(photo);
-            
-            updateEmptyView();
-            DataManager.saveAlbums(this, allAlbums);
+            if (!repository.movePhoto(album, targetAlbum, photo)) {
+                Toast.makeText(this, "Photo already in " + targetAlbum.getName(), Toast.LENGTH_SHORT).show();
+                return;
+            }
             Toast.makeText(this, "Photo moved to " + targetAlbum.getName(), Toast.LENGTH_SHORT).show();
         });
 
@@ -228,10 +310,7 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
         builder.setMessage("Remove \"" + photo.getFileName() + "\" from this album?");
 
         builder.setPositiveButton("Remove", (dialog, which) -> {
-            album.getPhotos().remove(position);
-            adapter.notifyItemRemoved(position);
-            updateEmptyView();
-            DataManager.saveAlbums(this, allAlbums);
+            repository.removePhoto(album, photo);
             Toast.makeText(this, "Photo removed", Toast.LENGTH_SHORT).show();
         });
 
@@ -239,7 +318,15 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
         builder.show();
     }
 
-    private void openPhoto(int position) {
+    /**
+     * Opens the photo where it is in the album now. The grid's positions
+     * can lag behind the album while a diff is still being worked out.
+     */
+    private void openPhoto(Photo photo) {
+        int position = album.indexOfPhoto(photo.getUriString());
+        if (position < 0) {
+            return;  // Removed or moved since the tap
+        }
         Intent intent = new Intent(this, PhotoDetailActivity.class);
         intent.putExtra(EXTRA_ALBUM_NAME, album.getName());
         intent.putExtra(EXTRA_PHOTO_POSITION, position);
@@ -248,23 +335,11 @@ public class AlbumDetailActivity extends AppCompatActivity implements PhotoAdapt
 
     @Override
     public void onPhotoClick(Photo photo, int position) {
-        openPhoto(position);
+        openPhoto(photo);
     }
 
     @Override
     public void onPhotoLongClick(Photo photo, int position) {
         showPhotoOptionsDialog(photo, position);
     }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
-        // Reload albums in case tags were modified
-        allAlbums = DataManager.loadAlbums(this);
-        album = findAlbumByName(album.getName());
-        if (album != null) {
-            adapter.setPhotos(album.getPhotos());
-            adapter.notifyDataSetChanged();
-        }
-    }
 }
@@ -17,17 +17,18 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.softmeth.androidphotos.adapters.AlbumAdapter;
-import com.softmeth.androidphotos.data.DataManager;
+import com.softmeth.androidphotos.data.AlbumRepository;
 import com.softmeth.androidphotos.models.Album;
 
-import java.util.ArrayList;
 import java.util.List;
 
-public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAlbumClickListener {
+public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAlbumClickListener,
+        AlbumRepository.OnAlbumsChangedListener {
 
     private RecyclerView recyclerView;
     private AlbumAdapter adapter;
     private TextView emptyView;
+    private AlbumRepository repository;
     private List<Album> albums;
 
     @Override
@@ -46,8 +47,9 @@ public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAl
         emptyView = findViewById(R.id.empty_view);
         FloatingActionButton fabAddAlbum = findViewById(R.id.fab_add_album);
 
-        // Load albums from storage
-        albums = DataManager.loadAlbums(this);
+        // Share the albums held by the repository
+        repository = AlbumRepository.getInstance(this);
+        albums = repository.getAlbums();
 
         // Set up RecyclerView
         adapter = new AlbumAdapter(this);
@@ -60,22 +62,30 @@ public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAl
 
         // Set up FAB click listener
         fabAddAlbum.setOnClickListener(v -> showCreateAlbumDialog());
-    }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        // Reload albums when returning to activity
-        albums = DataManager.loadAlbums(this);
-        adapter.setAlbums(albums);
-        updateEmptyView();
+        repository.addListener(this);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Save albums when app goes to background
-        DataManager.saveAlbums(this, albums);
+        // Write pending edits now; the process may be killed in the background
+        repository.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (repository != null) {
+            repository.removeListener(this);
+        }
+    }
+
+    @Override
+    public void onAlbumsChanged() {
+        // Other screens edit the same live list, so just redraw it
+        adapter.setAlbums(albums);
+        updateEmptyView();
     }
 
     @Override
@@ -120,20 +130,11 @@ public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAl
                 return;
             }
 
-            // Check if album already exists
-            for (Album album : albums) {
-                if (album.getName().equalsIgnoreCase(albumName)) {
-                    Toast.makeText(this, "Album already exists", Toast.LENGTH_SHORT).show();
-                    return;
-                }
+            // Create new album, unless the name is taken
+            if (repository.createAlbum(albumName) == null) {
+                Toast.makeText(this, "Album already exists", Toast.LENGTH_SHORT).show();
+                return;
             }
-
-            // Create new album
-            Album newAlbum = new Album(albumName);
-            albums.add(newAlbum);
-            adapter.notifyItemInserted(albums.size() - 1);
-            updateEmptyView();
-            DataManager.saveAlbums(this, albums);
             Toast.makeText(this, "Album created", Toast.LENGTH_SHORT).show();
         });
 
@@ -158,17 +159,11 @@ public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAl
                 return;
             }
 
-            // Check if album name already exists
-            for (Album a : albums) {
-                if (a != album && a.getName().equalsIgnoreCase(newName)) {
-                    Toast.makeText(this, "Album name already exists", Toast.LENGTH_SHORT).show();
-                    return;
-                }
+            // Rename, unless another album has that name
+            if (!repository.renameAlbum(album, newName)) {
+                Toast.makeText(this, "Album name already exists", Toast.LENGTH_SHORT).show();
+                return;
             }
-
-            album.setName(newName);
-            adapter.notifyItemChanged(position);
-            DataManager.saveAlbums(this, albums);
             Toast.makeText(this, "Album renamed", Toast.LENGTH_SHORT).show();
         });
 
@@ -204,10 +199,7 @@ public class MainActivity extends AppCompatActivity implements AlbumAdapter.OnAl
         builder.setMessage("Are you sure you want to delete \"" + album.getName() + "\"?");
 
         builder.setPositiveButton("Delete", (dialog, which) -> {
-            albums.remove(position);
-            adapter.notifyItemRemoved(position);
-            updateEmptyView();
-            DataManager.saveAlbums(this, albums);
+            repository.deleteAlbum(album);
             Toast.makeText(this, "Album deleted", Toast.LENGTH_SHORT).show();
         });
 
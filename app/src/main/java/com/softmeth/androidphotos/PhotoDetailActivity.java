@@ -7,7 +7,6 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -15,7 +14,10 @@ import android.widget.Toast;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.softmeth.androidphotos.data.DataManager;
+import com.softmeth.androidphotos.data.AlbumRepository;
+import com.softmeth.androidphotos.images.PhotoWindow;
+import com.softmeth.androidphotos.images.ThumbnailLoader;
+import com.softmeth.androidphotos.images.TiledImageView;
 import com.softmeth.androidphotos.models.Album;
 import com.softmeth.androidphotos.models.Photo;
 import com.softmeth.androidphotos.models.Tag;
@@ -25,13 +27,14 @@ import java.util.List;
 public class PhotoDetailActivity extends AppCompatActivity {
 
     private Album album;
-    private List<Album> allAlbums;
+    private AlbumRepository repository;
     private int currentPosition;
-    private ImageView imageView;
+    private TiledImageView imageView;
     private TextView fileNameView;
     private LinearLayout tagsContainer;
     private Button btnPrevious;
     private Button btnNext;
+    private PhotoWindow photoWindow;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,8 +49,8 @@ public class PhotoDetailActivity extends AppCompatActivity {
             return;
         }
 
-        allAlbums = DataManager.loadAlbums(this);
-        album = findAlbumByName(albumName);
+        repository = AlbumRepository.getInstance(this);
+        album = repository.findAlbumByName(albumName);
         if (album == null || album.getPhotos().isEmpty()) {
             Toast.makeText(this, "Album not found", Toast.LENGTH_SHORT).show();
             finish();
@@ -71,13 +74,30 @@ public class PhotoDetailActivity extends AppCompatActivity {
         btnPrevious.setOnClickListener(v -> showPreviousPhoto());
         btnNext.setOnClickListener(v -> showNextPhoto());
 
+        // Neighbours are decoded ahead so paging swaps bitmaps instantly
+        photoWindow = new PhotoWindow(ThumbnailLoader.getInstance(this), imageView,
+                getResources().getDisplayMetrics().widthPixels,
+                getResources().getDisplayMetrics().heightPixels,
+                PhotoWindow.defaultRadius(this));
+        // Zooming in decodes the original in tiles once the photo is on screen
+        photoWindow.setOnDisplayListener(imageView::setSource);
+
         displayCurrentPhoto();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (photoWindow != null) {
+            photoWindow.clear();
+        }
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
-        DataManager.saveAlbums(this, allAlbums);
+        // Tag edits should reach disk before the app is backgrounded
+        repository.flush();
     }
 
     @Override
@@ -101,15 +121,6 @@ public class PhotoDetailActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
-    private Album findAlbumByName(String name) {
-        for (Album a : allAlbums) {
-            if (a.getName().equals(name)) {
-                return a;
-            }
-        }
-        return null;
-    }
-
     private void displayCurrentPhoto() {
         if (currentPosition < 0 || currentPosition >= album.getPhotos().size()) {
             return;
@@ -118,7 +129,7 @@ public class PhotoDetailActivity extends AppCompatActivity {
         Photo photo = album.getPhotos().get(currentPosition);
         
         // Display image
-        imageView.setImageURI(photo.getUri());
+        photoWindow.moveTo(album.getPhotos(), currentPosition);
         
         // Display filename
         fileNameView.setText(photo.getFileName());
@@ -224,9 +235,8 @@ public class PhotoDetailActivity extends AppCompatActivity {
             }
             
             String tagName = tagTypes[selectedType[0]];
-            if (photo.addTag(tagName, tagValue)) {
+            if (repository.addTag(album, photo, tagName, tagValue)) {
                 displayTags(photo);
-                DataManager.saveAlbums(this, allAlbums);
                 Toast.makeText(this, "Tag added", Toast.LENGTH_SHORT).show();
             } else {
                 Toast.makeText(this, "Tag already exists", Toast.LENGTH_SHORT).show();
@@ -243,9 +253,8 @@ public class PhotoDetailActivity extends AppCompatActivity {
         builder.setMessage("Delete tag \"" + tag.getName() + ": " + tag.getValue() + "\"?");
         
         builder.setPositiveButton("Delete", (dialog, which) -> {
-            if (photo.removeTag(tag.getName(), tag.getValue())) {
+            if (repository.removeTag(album, photo, tag.getName(), tag.getValue())) {
                 displayTags(photo);
-                DataManager.saveAlbums(this, allAlbums);
                 Toast.makeText(this, "Tag deleted", Toast.LENGTH_SHORT).show();
             }
         });
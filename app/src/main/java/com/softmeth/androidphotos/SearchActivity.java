@@ -1,9 +1,14 @@
 package com.softmeth.androidphotos;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
 import android.text.InputType;
+import android.text.TextWatcher;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
 import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.EditText;
@@ -18,17 +23,33 @@ import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.softmeth.androidphotos.adapters.PhotoAdapter;
-import com.softmeth.androidphotos.data.DataManager;
+import com.softmeth.androidphotos.adapters.TagValueAdapter;
+import com.softmeth.androidphotos.data.AlbumRepository;
 import com.softmeth.androidphotos.models.Album;
 import com.softmeth.androidphotos.models.Photo;
-import com.softmeth.androidphotos.models.Tag;
+import com.softmeth.androidphotos.search.AlbumMembershipIndex;
+import com.softmeth.androidphotos.search.Query;
+import com.softmeth.androidphotos.search.QueryParser;
+import com.softmeth.androidphotos.search.TagIndex;
 
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Searches photos by tag. Results follow the query box as it is edited:
+ * a query runs once typing pauses for {@link #DEBOUNCE_MS}, on a
+ * background thread, and a newer query cancels the one still running.
+ * Results go into the grid a page at a time, starting with roughly one
+ * screenful, so the first matches show without waiting for the rest to
+ * be diffed.
+ */
 public class SearchActivity extends AppCompatActivity implements PhotoAdapter.OnPhotoClickListener {
+    static final long DEBOUNCE_MS = 200;
+    static final int FIRST_PAGE_SIZE = 60;  // About a screen of the 3-column grid
 
     private RecyclerView recyclerView;
     private PhotoAdapter adapter;
@@ -38,9 +59,17 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
     private Button btnClear;
     private TextView criteriaDisplay;
     
-    private List<Album> allAlbums;
-    private List<SearchCriteria> searchCriteria;
-    private boolean useConjunction = true; // true = AND, false = OR
+    private EditText queryInput;
+    
+    private AlbumRepository repository;
+    private boolean lastCombineWithAnd = true; // Default for the next added criterion
+    
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable liveSearch = () -> runSearch(false);
+    private ExecutorService searchExecutor;
+    private Future<?> runningSearch;
+    private int searchGeneration;  // Bumped for every new search; stale results are dropped
+    private long searchedVersion = -1;  // Library version the shown results are for
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,9 +81,13 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
         
-        // Load albums
-        allAlbums = DataManager.loadAlbums(this);
-        searchCriteria = new ArrayList<>();
+        // Search the albums already held by the repository
+        repository = AlbumRepository.getInstance(this);
+        searchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "photo-search");
+            thread.setDaemon(true);
+            return thread;
+        });
         
         // Initialize views
         recyclerView = findViewById(R.id.search_results_recycler_view);
@@ -63,6 +96,7 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
         btnSearch = findViewById(R.id.btn_search);
         btnClear = findViewById(R.id.btn_clear);
         criteriaDisplay = findViewById(R.id.criteria_display);
+        queryInput = findViewById(R.id.search_query);
         
         // Set up RecyclerView
         adapter = new PhotoAdapter(this, this);
@@ -70,12 +104,53 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
         recyclerView.setAdapter(adapter);
         
         updateEmptyView();
-        updateCriteriaDisplay();
+        showQueryStatus(null, null);
         
         // Set up button listeners
         btnAddCriteria.setOnClickListener(v -> showAddCriteriaDialog());
         btnSearch.setOnClickListener(v -> performSearch());
         btnClear.setOnClickListener(v -> clearSearch());
+        
+        // Live search: wait for a pause in typing, then run in the background
+        queryInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                mainHandler.removeCallbacks(liveSearch);
+                mainHandler.postDelayed(liveSearch, DEBOUNCE_MS);
+            }
+        });
+        queryInput.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                performSearch();
+                return true;
+            }
+            return false;
+        });
+    }
+    
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Tags may have been edited from the photo screen; unchanged
+        // searches are answered from the tag index's cache
+        if (searchedVersion >= 0 && searchedVersion != repository.getVersion()) {
+            runSearch(false);
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mainHandler.removeCallbacks(liveSearch);
+        searchExecutor.shutdownNow();
     }
     
     @Override
@@ -103,11 +178,11 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
 
         // Set default selections
         rbPerson.setChecked(true);
-        if (searchCriteria.isEmpty()) {
+        if (queryText().isEmpty()) {
             logicGroup.setVisibility(View.GONE);
         } else {
-            rbAnd.setChecked(useConjunction);
-            rbOr.setChecked(!useConjunction);
+            rbAnd.setChecked(lastCombineWithAnd);
+            rbOr.setChecked(!lastCombineWithAnd);
         }
 
         // Set up auto-complete
@@ -130,13 +205,21 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
                 return;
             }
 
-            // Update logic operator if not first criteria
-            if (!searchCriteria.isEmpty()) {
-                useConjunction = rbAnd.isChecked();
+            // The operator joins the new term to everything typed so far
+            Query query = new Query.Term(tagType, tagValue);
+            if (!queryText().isEmpty()) {
+                Query existing = parseQuery();
+                if (existing == null) {
+                    return;
+                }
+                lastCombineWithAnd = rbAnd.isChecked();
+                List<Query> both = new ArrayList<>(2);
+                both.add(existing);
+                both.add(query);
+                query = lastCombineWithAnd ? new Query.And(both) : new Query.Or(both);
             }
-
-            searchCriteria.add(new SearchCriteria(tagType, tagValue));
-            updateCriteriaDisplay();
+            queryInput.setText(query.toString());
+            showQueryStatus(query, null);
             Toast.makeText(this, "Criteria added", Toast.LENGTH_SHORT).show();
         });
 
@@ -144,93 +227,138 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
         builder.show();
     }
     
-    private void updateCriteriaDisplay() {
-        if (searchCriteria.isEmpty()) {
-            criteriaDisplay.setText("No search criteria. Tap 'Add Criteria' to begin.");
+    private String queryText() {
+        return queryInput.getText().toString().trim();
+    }
+    
+    /**
+     * Parses the query box, showing the error if the text is not a valid query.
+     */
+    private Query parseQuery() {
+        try {
+            return QueryParser.parse(queryText());
+        } catch (ParseException e) {
+            showQueryStatus(null, e);
+            return null;
+        }
+    }
+    
+    private void showQueryStatus(Query query, ParseException error) {
+        if (error != null) {
+            criteriaDisplay.setText(error.getMessage() + " at position " + (error.getErrorOffset() + 1));
+            criteriaDisplay.setTextColor(getResources().getColor(android.R.color.holo_red_dark, null));
+        } else if (query == null) {
+            criteriaDisplay.setText("Type a query such as person:alice AND (location:nyc OR location:paris), "
+                    + "or tap 'Add Criteria'.");
             criteriaDisplay.setTextColor(getResources().getColor(android.R.color.darker_gray, null));
         } else {
-            StringBuilder sb = new StringBuilder("Search: ");
-            for (int i = 0; i < searchCriteria.size(); i++) {
-                SearchCriteria sc = searchCriteria.get(i);
-                sb.append(sc.tagType).append(":\"").append(sc.tagValue).append("\"");
-                if (i < searchCriteria.size() - 1) {
-                    sb.append(useConjunction ? " AND " : " OR ");
-                }
-            }
-            criteriaDisplay.setText(sb.toString());
+            criteriaDisplay.setText("Search: " + query);
             criteriaDisplay.setTextColor(getResources().getColor(android.R.color.black, null));
         }
     }
     
     private void performSearch() {
-        if (searchCriteria.isEmpty()) {
-            Toast.makeText(this, "Please add search criteria first", Toast.LENGTH_SHORT).show();
+        mainHandler.removeCallbacks(liveSearch);
+        runSearch(true);
+    }
+    
+    /**
+     * Starts a search for the query box. A live search (not {@code explicit})
+     * stays quiet about half-typed queries and keeps the current results.
+     */
+    private void runSearch(boolean explicit) {
+        if (queryText().isEmpty()) {
+            if (explicit) {
+                Toast.makeText(this, "Please add search criteria first", Toast.LENGTH_SHORT).show();
+            } else {
+                cancelSearch();
+                adapter.setPhotos(new ArrayList<>(), this::updateEmptyView);
+                showQueryStatus(null, null);
+            }
             return;
         }
-        
-        List<Photo> results = new ArrayList<>();
-        Set<Photo> uniquePhotos = new HashSet<>();
-        
-        // Search through all albums
-        for (Album album : allAlbums) {
-            for (Photo photo : album.getPhotos()) {
-                if (matchesSearchCriteria(photo)) {
-                    if (uniquePhotos.add(photo)) {
-                        results.add(photo);
-                    }
-                }
+        Query query;
+        try {
+            query = QueryParser.parse(queryText());
+        } catch (ParseException e) {
+            if (explicit) {
+                showQueryStatus(null, e);
+                Toast.makeText(this, "Could not read the query", Toast.LENGTH_SHORT).show();
             }
+            return;
         }
         
-        adapter.setPhotos(results);
-        updateEmptyView();
-        
-        if (results.isEmpty()) {
-            Toast.makeText(this, "No photos found", Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, "Found " + results.size() + " photo(s)", Toast.LENGTH_SHORT).show();
+        cancelSearch();
+        int generation = searchGeneration;
+        searchedVersion = repository.getVersion();
+        // Built here on first use; after that only searched off the UI thread
+        TagIndex index = repository.getTagIndex();
+        runningSearch = searchExecutor.submit(() -> {
+            List<Photo> results = index.search(query);
+            if (!Thread.currentThread().isInterrupted()) {
+                mainHandler.post(() -> showResults(generation, query, results, explicit));
+            }
+        });
+    }
+    
+    private void cancelSearch() {
+        searchGeneration++;
+        searchedVersion = -1;
+        if (runningSearch != null) {
+            runningSearch.cancel(true);
+            runningSearch = null;
         }
     }
     
-    private boolean matchesSearchCriteria(Photo photo) {
-        if (searchCriteria.isEmpty()) {
-            return false;
+    private void showResults(int generation, Query query, List<Photo> results, boolean explicit) {
+        if (generation != searchGeneration) {
+            return;  // A newer search has started
         }
+        runningSearch = null;
+        showQueryStatus(query, null);
+        criteriaDisplay.append("  (" + results.size() + " found)");
+        showPage(generation, results, Math.min(FIRST_PAGE_SIZE, results.size()));
         
-        if (useConjunction) {
-            // AND logic - photo must match ALL criteria
-            for (SearchCriteria sc : searchCriteria) {
-                if (!hasMatchingTag(photo, sc.tagType, sc.tagValue)) {
-                    return false;
-                }
-            }
-            return true;
-        } else {
-            // OR logic - photo must match ANY criteria
-            for (SearchCriteria sc : searchCriteria) {
-                if (hasMatchingTag(photo, sc.tagType, sc.tagValue)) {
-                    return true;
-                }
+        if (explicit) {
+            if (results.isEmpty()) {
+                Toast.makeText(this, "No photos found", Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(this, "Found " + results.size() + " photo(s)", Toast.LENGTH_SHORT).show();
             }
-            return false;
         }
     }
     
-    private boolean hasMatchingTag(Photo photo, String tagType, String tagValue) {
-        for (Tag tag : photo.getTags()) {
-            if (tag.getName().equalsIgnoreCase(tagType) && 
-                tag.getValue().equalsIgnoreCase(tagValue)) {
-                return true;
-            }
+    /**
+     * Replaces the grid with the first page of results, diffed against the
+     * previous results, then appends the rest a page at a time once it is
+     * on screen. Each page is twice the size of the one before, so a large
+     * result set takes only a few rounds, and appending never diffs the
+     * pages already shown.
+     */
+    private void showPage(int generation, List<Photo> results, int end) {
+        adapter.setPhotos(results.subList(0, end), () -> {
+            updateEmptyView();
+            appendPage(generation, results, end);
+        });
+    }
+    
+    private void appendPage(int generation, List<Photo> results, int start) {
+        if (generation != searchGeneration || start >= results.size()) {
+            return;
         }
-        return false;
+        int end = Math.min(start * 2, results.size());
+        adapter.appendPhotos(results.subList(start, end));
+        // Let the grid lay out this page before adding the next
+        mainHandler.post(() -> appendPage(generation, results, end));
     }
     
     private void clearSearch() {
-        searchCriteria.clear();
-        adapter.setPhotos(new ArrayList<>());
-        updateCriteriaDisplay();
-        updateEmptyView();
+        mainHandler.removeCallbacks(liveSearch);
+        cancelSearch();
+        queryInput.setText("");
+        mainHandler.removeCallbacks(liveSearch);  // Queued again by the text change
+        adapter.setPhotos(new ArrayList<>(), this::updateEmptyView);
+        showQueryStatus(null, null);
         Toast.makeText(this, "Search cleared", Toast.LENGTH_SHORT).show();
     }
     
@@ -246,85 +374,36 @@ public class SearchActivity extends AppCompatActivity implements PhotoAdapter.On
     
     @Override
     public void onPhotoClick(Photo photo, int position) {
-        // Find which album contains this photo
-        String albumName = findAlbumForPhoto(photo);
-        if (albumName != null) {
-            // Find the position in that album
-            Album album = findAlbumByName(albumName);
-            if (album != null) {
-                int photoPosition = album.getPhotos().indexOf(photo);
-                if (photoPosition >= 0) {
-                    android.content.Intent intent = new android.content.Intent(this, PhotoDetailActivity.class);
-                    intent.putExtra(AlbumDetailActivity.EXTRA_ALBUM_NAME, albumName);
-                    intent.putExtra(AlbumDetailActivity.EXTRA_PHOTO_POSITION, photoPosition);
-                    startActivity(intent);
-                }
-            }
+        AlbumMembershipIndex.Membership membership = repository.getMembershipIndex().locate(photo);
+        if (membership != null) {
+            android.content.Intent intent = new android.content.Intent(this, PhotoDetailActivity.class);
+            intent.putExtra(AlbumDetailActivity.EXTRA_ALBUM_NAME, membership.album.getName());
+            intent.putExtra(AlbumDetailActivity.EXTRA_PHOTO_POSITION, membership.position);
+            startActivity(intent);
         }
     }
     
     @Override
     public void onPhotoLongClick(Photo photo, int position) {
-        // Show photo info
-        String albumName = findAlbumForPhoto(photo);
+        // Show photo info, listing every album the picture is in
+        List<Album> albums = repository.getMembershipIndex().albumsOf(photo.getUriString());
+        StringBuilder names = new StringBuilder();
+        for (Album album : albums) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(album.getName());
+        }
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(photo.getFileName());
-        builder.setMessage("Album: " + (albumName != null ? albumName : "Unknown"));
+        builder.setMessage((albums.size() > 1 ? "Albums: " : "Album: ")
+                + (albums.isEmpty() ? "Unknown" : names));
         builder.setPositiveButton("OK", null);
         builder.show();
     }
     
-    private String findAlbumForPhoto(Photo photo) {
-        for (Album album : allAlbums) {
-            if (album.getPhotos().contains(photo)) {
-                return album.getName();
-            }
-        }
-        return null;
-    }
-    
-    private Album findAlbumByName(String name) {
-        for (Album album : allAlbums) {
-            if (album.getName().equals(name)) {
-                return album;
-            }
-        }
-        return null;
-    }
-    
-    private static class SearchCriteria {
-        String tagType;
-        String tagValue;
-        
-        SearchCriteria(String tagType, String tagValue) {
-            this.tagType = tagType;
-            this.tagValue = tagValue;
-        }
-    }
-
     private void updateAutoComplete(AutoCompleteTextView textView, String tagType) {
-        Set<String> tagValues = getAllTagValues(tagType);
-        android.widget.ArrayAdapter<String> adapter = new android.widget.ArrayAdapter<>(
-                this,
-                android.R.layout.simple_dropdown_item_1line,
-                new ArrayList<>(tagValues)
-        );
-        textView.setAdapter(adapter);
-    }
-
-    private Set<String> getAllTagValues(String tagType) {
-        Set<String> values = new HashSet<>();
-
-        for (Album album : allAlbums) {
-            for (Photo photo : album.getPhotos()) {
-                for (Tag tag : photo.getTags()) {
-                    if (tag.getName().equalsIgnoreCase(tagType)) {
-                        values.add(tag.getValue());
-                    }
-                }
-            }
-        }
-
-        return values;
+        // Suggestions are looked up per prefix, so nothing is scanned up front
+        textView.setAdapter(new TagValueAdapter(this, repository.getTagIndex(), tagType));
     }
 }
@@ -5,19 +5,57 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import com.softmeth.androidphotos.R;
 import com.softmeth.androidphotos.models.Album;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Adapter for displaying albums in a RecyclerView.
+ *
+ * Albums are edited in place, so each row is diffed against a snapshot of
+ * what it showed rather than against the album itself. A row belongs to an
+ * Album instance, not to a name, so a renamed album keeps its row and its
+ * item id.
  */
 public class AlbumAdapter extends RecyclerView.Adapter<AlbumAdapter.AlbumViewHolder> {
     
-    private List<Album> albums;
+    private static final class Row {
+        final Album album;
+        final long id;
+        final String name;
+        final int photoCount;
+        
+        Row(Album album, long id) {
+            this.album = album;
+            this.id = id;
+            this.name = album.getName();
+            this.photoCount = album.getPhotoCount();
+        }
+    }
+    
+    private static final DiffUtil.ItemCallback<Row> DIFF_CALLBACK = new DiffUtil.ItemCallback<Row>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Row oldRow, @NonNull Row newRow) {
+            return oldRow.album == newRow.album;
+        }
+        
+        @Override
+        public boolean areContentsTheSame(@NonNull Row oldRow, @NonNull Row newRow) {
+            return oldRow.name.equals(newRow.name) && oldRow.photoCount == newRow.photoCount;
+        }
+    };
+    
+    private final AsyncListDiffer<Row> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    // By identity: Album.equals compares names, which change on rename
+    private Map<Album, Long> ids = new IdentityHashMap<>();
+    private long nextId;
     private OnAlbumClickListener listener;
     
     public interface OnAlbumClickListener {
@@ -26,17 +64,28 @@ public class AlbumAdapter extends RecyclerView.Adapter<AlbumAdapter.AlbumViewHol
     }
     
     public AlbumAdapter(OnAlbumClickListener listener) {
-        this.albums = new ArrayList<>();
         this.listener = listener;
+        setHasStableIds(true);
     }
     
+    /**
+     * Shows the albums, rebinding only the rows that changed. The
+     * difference is worked out in the background.
+     */
     public void setAlbums(List<Album> albums) {
-        this.albums = albums;
-        notifyDataSetChanged();
-    }
-    
-    public List<Album> getAlbums() {
-        return albums;
+        // Only albums still listed keep their ids
+        Map<Album, Long> current = new IdentityHashMap<>();
+        List<Row> rows = new ArrayList<>(albums.size());
+        for (Album album : albums) {
+            Long id = ids.get(album);
+            if (id == null) {
+                id = nextId++;
+            }
+            current.put(album, id);
+            rows.add(new Row(album, id));
+        }
+        ids = current;
+        differ.submitList(rows);
     }
     
     @NonNull
@@ -49,13 +98,17 @@ public class AlbumAdapter extends RecyclerView.Adapter<AlbumAdapter.AlbumViewHol
     
     @Override
     public void onBindViewHolder(@NonNull AlbumViewHolder holder, int position) {
-        Album album = albums.get(position);
-        holder.bind(album);
+        holder.bind(differ.getCurrentList().get(position));
+    }
+    
+    @Override
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).id;
     }
     
     @Override
     public int getItemCount() {
-        return albums.size();
+        return differ.getCurrentList().size();
     }
     
     class AlbumViewHolder extends RecyclerView.ViewHolder {
@@ -70,23 +123,23 @@ public class AlbumAdapter extends RecyclerView.Adapter<AlbumAdapter.AlbumViewHol
             itemView.setOnClickListener(v -> {
                 int position = getAdapterPosition();
                 if (position != RecyclerView.NO_POSITION && listener != null) {
-                    listener.onAlbumClick(albums.get(position), position);
+                    listener.onAlbumClick(differ.getCurrentList().get(position).album, position);
                 }
             });
             
             itemView.setOnLongClickListener(v -> {
                 int position = getAdapterPosition();
                 if (position != RecyclerView.NO_POSITION && listener != null) {
-                    listener.onAlbumLongClick(albums.get(position), position);
+                    listener.onAlbumLongClick(differ.getCurrentList().get(position).album, position);
                     return true;
                 }
                 return false;
             });
         }
         
-        public void bind(Album album) {
-            albumName.setText(album.getName());
-            int count = album.getPhotoCount();
+        void bind(Row row) {
+            albumName.setText(row.name);
+            int count = row.photoCount;
             photoCount.setText(count + (count == 1 ? " photo" : " photos"));
         }
     }
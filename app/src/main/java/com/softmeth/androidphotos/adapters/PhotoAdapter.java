@@ -1,6 +1,10 @@
 package com.softmeth.androidphotos.adapters;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -8,19 +12,52 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.softmeth.androidphotos.R;
+import com.softmeth.androidphotos.images.ThumbnailLoader;
+import com.softmeth.androidphotos.images.ThumbnailPrefetcher;
 import com.softmeth.androidphotos.models.Photo;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class PhotoAdapter extends RecyclerView.Adapter<PhotoAdapter.PhotoViewHolder> {
+public class PhotoAdapter extends RecyclerView.Adapter<PhotoAdapter.PhotoViewHolder>
+        implements ThumbnailPrefetcher.Source {
+
+    private static final DiffUtil.ItemCallback<Photo> DIFF_CALLBACK = new DiffUtil.ItemCallback<Photo>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Photo oldPhoto, @NonNull Photo newPhoto) {
+            return oldPhoto.getUriString().equals(newPhoto.getUriString());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Photo oldPhoto, @NonNull Photo newPhoto) {
+            return Objects.equals(oldPhoto.getFileName(), newPhoto.getFileName());
+        }
+    };
+
+    // Diffs are worked out here, one at a time, so the main thread never waits on them
+    private static final ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "photo-diff");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private Context context;
-    private List<Photo> photos;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private List<Photo> photos = new ArrayList<>();  // Replaced, never edited; main thread only
+    private int submitGeneration;  // Bumped by every change; stale diffs are dropped
     private OnPhotoClickListener listener;
+    private final ThumbnailLoader thumbnailLoader;
+    private final ThumbnailPrefetcher prefetcher;
+    private int thumbnailWidth;
+    private int thumbnailHeight;
 
     public interface OnPhotoClickListener {
         void onPhotoClick(Photo photo, int position);
@@ -29,26 +66,113 @@ public class PhotoAdapter extends RecyclerView.Adapter<PhotoAdapter.PhotoViewHol
 
     public PhotoAdapter(Context context, OnPhotoClickListener listener) {
         this.context = context;
-        this.photos = new ArrayList<>();
         this.listener = listener;
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
+        this.prefetcher = new ThumbnailPrefetcher(thumbnailLoader, this);
+        setHasStableIds(true);
     }
 
     public void setPhotos(List<Photo> photos) {
-        this.photos = photos;
-        notifyDataSetChanged();
+        setPhotos(photos, null);
+    }
+
+    /**
+     * Shows the photos, rebinding only the cells that changed. The
+     * difference is worked out in the background, so the adapter still
+     * shows the old list until {@code onShown} runs. A newer call or
+     * {@link #appendPhotos} before then drops this one.
+     */
+    public void setPhotos(List<Photo> photos, Runnable onShown) {
+        // Callers pass live album lists; the diff needs lists nobody else edits
+        List<Photo> oldPhotos = this.photos;
+        List<Photo> newPhotos = new ArrayList<>(photos);
+        int generation = ++submitGeneration;
+        DIFF_EXECUTOR.execute(() -> {
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldPhotos.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return newPhotos.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return DIFF_CALLBACK.areItemsTheSame(oldPhotos.get(oldPosition), newPhotos.get(newPosition));
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return DIFF_CALLBACK.areContentsTheSame(oldPhotos.get(oldPosition), newPhotos.get(newPosition));
+                }
+            });
+            mainHandler.post(() -> {
+                if (generation != submitGeneration) {
+                    return;
+                }
+                this.photos = newPhotos;
+                result.dispatchUpdatesTo(this);
+                prefetcher.cancelAll();  // Positions refer to the old list
+                if (onShown != null) {
+                    onShown.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Adds photos after the ones shown, without diffing anything. Used to
+     * show a long list a page at a time.
+     */
+    public void appendPhotos(List<Photo> more) {
+        submitGeneration++;
+        int start = photos.size();
+        // A new list, as a dropped diff may still be reading the old one
+        List<Photo> appended = new ArrayList<>(start + more.size());
+        appended.addAll(photos);
+        appended.addAll(more);
+        photos = appended;
+        notifyItemRangeInserted(start, more.size());
     }
 
     @NonNull
     @Override
     public PhotoViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(context).inflate(R.layout.item_photo, parent, false);
-        return new PhotoViewHolder(view);
+        PhotoViewHolder holder = new PhotoViewHolder(view);
+        if (thumbnailWidth == 0) {
+            measureThumbnail(parent, holder.photoImageView);
+        }
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull PhotoViewHolder holder, int position) {
-        Photo photo = photos.get(position);
-        holder.bind(photo, position);
+        holder.bind(photos.get(position));
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return StableIds.of(photos.get(position).getUriString());
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(prefetcher);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(prefetcher);
+        prefetcher.cancelAll();
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull PhotoViewHolder holder) {
+        holder.clearThumbnail();
     }
 
     @Override
@@ -56,41 +180,121 @@ public class PhotoAdapter extends RecyclerView.Adapter<PhotoAdapter.PhotoViewHol
         return photos.size();
     }
 
+    public ThumbnailPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    @Override
+    public int getCount() {
+        return photos.size();
+    }
+
+    @Override
+    public Uri getUri(int position) {
+        return photos.get(position).getUri();
+    }
+
+    @Override
+    public int getThumbnailWidth() {
+        return thumbnailWidth;
+    }
+
+    @Override
+    public int getThumbnailHeight() {
+        return thumbnailHeight;
+    }
+
+    /**
+     * Works out the cell size once so thumbnails are decoded no larger than
+     * they are drawn. Falls back to the screen width before the grid is laid out.
+     */
+    private void measureThumbnail(ViewGroup parent, ImageView imageView) {
+        int columns = 1;
+        if (parent instanceof RecyclerView
+                && ((RecyclerView) parent).getLayoutManager() instanceof GridLayoutManager) {
+            columns = ((GridLayoutManager) ((RecyclerView) parent).getLayoutManager()).getSpanCount();
+        }
+        int parentWidth = parent.getWidth();
+        if (parentWidth <= 0) {
+            parentWidth = context.getResources().getDisplayMetrics().widthPixels;
+        }
+        thumbnailWidth = Math.max(1, parentWidth / columns);
+        int height = imageView.getLayoutParams() != null ? imageView.getLayoutParams().height : 0;
+        thumbnailHeight = height > 0 ? height : thumbnailWidth;
+    }
+
     class PhotoViewHolder extends RecyclerView.ViewHolder {
         ImageView photoImageView;
         TextView photoNameText;
+        Uri boundUri;
+        ThumbnailLoader.Request thumbnailRequest;
+        Bitmap thumbnail;  // Released back to the loader when the cell is cleared
 
         PhotoViewHolder(View itemView) {
             super(itemView);
             photoImageView = itemView.findViewById(R.id.photoImageView);
             photoNameText = itemView.findViewById(R.id.photoNameText);
+
+            // Moves don't rebind, so look the position up when clicked
+            itemView.setOnClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && listener != null) {
+                    listener.onPhotoClick(photos.get(position), position);
+                }
+            });
+
+            itemView.setOnLongClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && listener != null) {
+                    listener.onPhotoLongClick(photos.get(position), position);
+                }
+                return true;
+            });
         }
 
-        void bind(Photo photo, int position) {
+        void bind(Photo photo) {
             // Set photo name
             photoNameText.setText(photo.getFileName());
 
-            // Load image from URI
-            try {
-                photoImageView.setImageURI(photo.getUri());
-            } catch (Exception e) {
-                // If image fails to load, use a placeholder
-                photoImageView.setImageResource(android.R.drawable.ic_menu_gallery);
+            Uri uri = photo.getUri();
+            if (uri.equals(boundUri)) {
+                return;  // Same photo, thumbnail already shown or on its way
             }
 
-            // Set click listeners
-            itemView.setOnClickListener(v -> {
-                if (listener != null) {
-                    listener.onPhotoClick(photo, position);
+            // Decode the thumbnail off the main thread
+            clearThumbnail();
+            boundUri = uri;
+            thumbnailRequest = thumbnailLoader.load(uri, thumbnailWidth, thumbnailHeight, bitmap -> {
+                if (!uri.equals(boundUri)) {
+                    // The cell shows a different photo by now
+                    if (bitmap != null) {
+                        thumbnailLoader.release(bitmap);
+                    }
+                    return;
                 }
-            });
-
-            itemView.setOnLongClickListener(v -> {
-                if (listener != null) {
-                    listener.onPhotoLongClick(photo, position);
+                thumbnailRequest = null;
+                if (bitmap != null) {
+                    thumbnail = bitmap;
+                    photoImageView.setImageBitmap(bitmap);
+                } else {
+                    // If image fails to load, use a placeholder
+                    photoImageView.setImageResource(android.R.drawable.ic_menu_gallery);
                 }
-                return true;
             });
         }
+
+        void clearThumbnail() {
+            if (thumbnailRequest != null) {
+                thumbnailRequest.cancel();
+                thumbnailRequest = null;
+            }
+            boundUri = null;
+            photoImageView.setImageDrawable(null);
+            if (thumbnail != null) {
+                // Only after the view has let go, or the pool could reuse it on screen
+                thumbnailLoader.release(thumbnail);
+                thumbnail = null;
+            }
+        }
     }
 }
\ No newline at end of file
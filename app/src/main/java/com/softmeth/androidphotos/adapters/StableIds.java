@@ -0,0 +1,26 @@
+package com.softmeth.androidphotos.adapters;
+
+/**
+ * Stable RecyclerView item ids derived from an item's natural key, so a
+ * row keeps its id however the list around it changes.
+ */
+final class StableIds {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private StableIds() {
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key. Collisions are possible but, at the
+     * size of a photo library, vanishingly unlikely.
+     */
+    static long of(String key) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
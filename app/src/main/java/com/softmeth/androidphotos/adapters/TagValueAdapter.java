@@ -0,0 +1,59 @@
+package com.softmeth.androidphotos.adapters;
+
+import android.content.Context;
+import android.widget.ArrayAdapter;
+import android.widget.Filter;
+
+import com.softmeth.androidphotos.search.TagIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Autocomplete adapter for tag values.
+ * Suggestions come from the tag index's prefix trie instead of filtering a
+ * full list of values, and are ordered by how many photos use them.
+ */
+public class TagValueAdapter extends ArrayAdapter<String> {
+
+    private static final int MAX_SUGGESTIONS = 10;
+
+    private final TagIndex index;
+    private final String tagName;
+
+    private final Filter filter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            // Runs on the filter's background thread
+            List<String> suggestions = constraint == null
+                    ? new ArrayList<>()
+                    : index.complete(tagName, constraint.toString(), MAX_SUGGESTIONS);
+            FilterResults results = new FilterResults();
+            results.values = suggestions;
+            results.count = suggestions.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            setNotifyOnChange(false);
+            clear();
+            if (results.values != null) {
+                addAll((List<String>) results.values);
+            }
+            notifyDataSetChanged();
+        }
+    };
+
+    public TagValueAdapter(Context context, TagIndex index, String tagName) {
+        super(context, android.R.layout.simple_dropdown_item_1line, new ArrayList<>());
+        this.index = index;
+        this.tagName = tagName;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return filter;
+    }
+}
@@ -0,0 +1,312 @@
+package com.softmeth.androidphotos.data;
+
+import android.content.Context;
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+import com.softmeth.androidphotos.search.AlbumMembershipIndex;
+import com.softmeth.androidphotos.search.TagIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide owner of the album library.
+ * Loads the albums once and hands the same live model to every Activity.
+ * All edits go through this class so listeners are told about them.
+ *
+ * Edits are saved as small records in a {@link MutationJournal}. Once the
+ * journal grows past {@link #COMPACT_THRESHOLD_BYTES} a fresh snapshot
+ * is written and the old records are dropped. All writes happen on
+ * the {@link PersistenceExecutor} thread.
+ */
+public class AlbumRepository {
+
+    public interface OnAlbumsChangedListener {
+        void onAlbumsChanged();
+    }
+
+    static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+
+    private static AlbumRepository instance;
+
+    private final List<Album> albums;
+    private final List<OnAlbumsChangedListener> listeners = new ArrayList<>();
+    private final PersistenceExecutor persistence;
+    private TagIndex tagIndex;  // built on first search
+    private AlbumMembershipIndex membershipIndex;  // built on first search
+    private long version;  // Bumped by every edit
+
+    private AlbumRepository(Context context) {
+        this.albums = DataManager.loadAlbums(context);
+        MutationJournal journal = new MutationJournal(context.getFilesDir());
+        try {
+            journal.replay(albums, DataManager.getSnapshotGeneration(context));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.persistence = new PersistenceExecutor(context, journal);
+        // A leftover rotated file means the last snapshot never finished
+        maybeCompact(journal.hasRotated());
+    }
+
+    /**
+     * Returns the shared repository, loading the albums on first use.
+     */
+    public static synchronized AlbumRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new AlbumRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public List<Album> getAlbums() {
+        return albums;  // Live list shared by every screen
+    }
+
+    /**
+     * Number of edits made since the library was loaded. Screens showing
+     * derived data compare it to tell whether they are out of date.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the tag index, building it on first use. Building loads the
+     * photos of every album; afterwards every edit updates it in place.
+     */
+    public TagIndex getTagIndex() {
+        if (tagIndex == null) {
+            tagIndex = new TagIndex(albums);
+        }
+        return tagIndex;
+    }
+
+    /**
+     * Returns the photo-to-album index, building it on first use like
+     * {@link #getTagIndex()}.
+     */
+    public AlbumMembershipIndex getMembershipIndex() {
+        if (membershipIndex == null) {
+            membershipIndex = new AlbumMembershipIndex(albums);
+        }
+        return membershipIndex;
+    }
+
+    public Album findAlbumByName(String name) {
+        for (Album album : albums) {
+            if (album.getName().equals(name)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a new album. Returns null if the name is already taken.
+     */
+    public Album createAlbum(String name) {
+        if (isNameTaken(name, null)) {
+            return null;
+        }
+        Album album = new Album(name);
+        albums.add(album);
+        commit(MutationJournal.Record.createAlbum(name));
+        return album;
+    }
+
+    public boolean renameAlbum(Album album, String newName) {
+        if (isNameTaken(newName, album)) {
+            return false;
+        }
+        String oldName = album.getName();
+        album.setName(newName);
+        commit(MutationJournal.Record.renameAlbum(oldName, newName));
+        return true;
+    }
+
+    public boolean deleteAlbum(Album album) {
+        if (!albums.remove(album)) {
+            return false;
+        }
+        if (tagIndex != null) {
+            for (Photo photo : album.getPhotos()) {
+                tagIndex.removePhoto(photo);
+            }
+        }
+        if (membershipIndex != null) {
+            membershipIndex.removeAlbum(album);
+        }
+        commit(MutationJournal.Record.deleteAlbum(album.getName()));
+        return true;
+    }
+
+    public boolean addPhoto(Album album, Photo photo) {
+        if (!album.addPhoto(photo)) {
+            return false;
+        }
+        if (tagIndex != null) {
+            tagIndex.addPhoto(photo);
+        }
+        if (membershipIndex != null) {
+            membershipIndex.add(album, photo);
+        }
+        commit(MutationJournal.Record.addPhoto(album.getName(), photo));
+        return true;
+    }
+
+    /**
+     * Adds a batch of photos, e.g. from an import, as one edit: the records
+     * are journaled together and listeners are told once.
+     * Photos already in the album are skipped.
+     *
+     * @return the number of photos added
+     */
+    public int addPhotos(Album album, List<Photo> photos) {
+        List<MutationJournal.Record> records = new ArrayList<>(photos.size());
+        for (Photo photo : photos) {
+            if (!album.addPhoto(photo)) {
+                continue;
+            }
+            if (tagIndex != null) {
+                tagIndex.addPhoto(photo);
+            }
+            if (membershipIndex != null) {
+                membershipIndex.add(album, photo);
+            }
+            records.add(MutationJournal.Record.addPhoto(album.getName(), photo));
+        }
+        if (!records.isEmpty()) {
+            commitAll(records);
+        }
+        return records.size();
+    }
+
+    public boolean removePhoto(Album album, Photo photo) {
+        // The index tracks the instance stored in the album
+        Photo stored = album.findPhoto(photo.getUriString());
+        if (stored == null) {
+            return false;
+        }
+        album.removePhoto(stored);
+        if (tagIndex != null) {
+            tagIndex.removePhoto(stored);
+        }
+        if (membershipIndex != null) {
+            membershipIndex.remove(album, stored);
+        }
+        commit(MutationJournal.Record.removePhoto(album.getName(), photo));
+        return true;
+    }
+
+    /**
+     * Moves a photo between albums, keeping its tags.
+     * Returns false if the target album already holds the photo.
+     */
+    public boolean movePhoto(Album from, Album to, Photo photo) {
+        if (!to.addPhoto(photo)) {
+            return false;
+        }
+        from.removePhoto(photo);
+        if (membershipIndex != null) {
+            membershipIndex.remove(from, photo);
+            membershipIndex.add(to, photo);
+        }
+        commit(MutationJournal.Record.movePhoto(from.getName(), to.getName(), photo));
+        return true;
+    }
+
+    public boolean addTag(Album album, Photo photo, String tagName, String tagValue) {
+        if (!photo.addTag(tagName, tagValue)) {
+            return false;
+        }
+        if (tagIndex != null) {
+            tagIndex.addTag(photo, tagName, tagValue);
+        }
+        commit(MutationJournal.Record.addTag(album.getName(), photo, tagName, tagValue));
+        return true;
+    }
+
+    public boolean removeTag(Album album, Photo photo, String tagName, String tagValue) {
+        if (!photo.removeTag(tagName, tagValue)) {
+            return false;
+        }
+        if (tagIndex != null) {
+            tagIndex.removeTag(photo, tagName, tagValue);
+        }
+        commit(MutationJournal.Record.removeTag(album.getName(), photo, tagName, tagValue));
+        return true;
+    }
+
+    /**
+     * Starts writing pending edits now. Screens call this when they go to
+     * the background, since the process may be killed after that.
+     */
+    public void flush() {
+        persistence.flush();
+    }
+
+    /**
+     * Write queue and latency numbers, for diagnostics.
+     */
+    public PersistenceExecutor getPersistence() {
+        return persistence;
+    }
+
+    public void addListener(OnAlbumsChangedListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(OnAlbumsChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private boolean isNameTaken(String name, Album except) {
+        for (Album a : albums) {
+            if (a != except && a.getName().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void commit(MutationJournal.Record record) {
+        persistence.submit(record);
+        afterCommit();
+    }
+
+    private void commitAll(List<MutationJournal.Record> records) {
+        persistence.submitAll(records);
+        afterCommit();
+    }
+
+    private void afterCommit() {
+        version++;
+        // A failed journal write is recovered by writing a full snapshot
+        maybeCompact(persistence.isSnapshotNeeded());
+        // Copy so listeners may unregister while being notified
+        for (OnAlbumsChangedListener listener : new ArrayList<>(listeners)) {
+            listener.onAlbumsChanged();
+        }
+    }
+
+    /**
+     * Folds the journal into a new snapshot once it is large enough.
+     * The albums are copied here, on the UI thread that owns them, and the
+     * copy is written on the writer thread.
+     */
+    private void maybeCompact(boolean force) {
+        if (persistence.isSnapshotPending()
+                || (!force && persistence.getJournalSize() < COMPACT_THRESHOLD_BYTES)) {
+            return;
+        }
+        List<Album> snapshot = new ArrayList<>(albums.size());
+        for (Album album : albums) {
+            snapshot.add(new Album(album));
+        }
+        persistence.submitSnapshot(snapshot);
+    }
+}
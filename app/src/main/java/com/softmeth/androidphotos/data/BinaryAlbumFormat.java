@@ -0,0 +1,192 @@
+package com.softmeth.androidphotos.data;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+import com.softmeth.androidphotos.models.Tag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of albums.
+ *
+ * Album segment (used by {@link SectionedAlbumStore}):
+ * <pre>
+ *   varint stringCount, then each string as varint byteLength + UTF-8 bytes
+ *   varint photoCount, then per photo
+ *     varint uriPrefix, varint uriRest, varint fileName, varint tagCount,
+ *     then per tag varint tagName, varint tagValue
+ * </pre>
+ * Every string in a photo is an index into the segment's string table, so
+ * tag names, common tag values and content:// URI prefixes are stored once.
+ *
+ * Whole-library file (version 1, albums.bin), still read for migration:
+ * <pre>
+ *   int   magic "APHB"
+ *   short version
+ *   string table as above
+ *   varint albumCount, then each album as varint byteLength + varint name + photos
+ * </pre>
+ */
+public final class BinaryAlbumFormat {
+    static final int MAGIC = 0x41504842;  // "APHB"
+    static final short VERSION = 1;
+
+    private BinaryAlbumFormat() {
+    }
+
+    /**
+     * Writes one album's photos as a self-contained segment.
+     */
+    public static void writeSegment(DataOutputStream out, List<Photo> photos) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(buffer);
+        writePhotos(body, photos, strings);
+        body.flush();
+
+        writeStringTable(out, strings);
+        buffer.writeTo(out);
+    }
+
+    public static List<Photo> readSegment(ByteBuffer in) {
+        String[] strings = readStringTable(in);
+        return readPhotos(in, strings);
+    }
+
+    /**
+     * Reads a whole-library version 1 file.
+     */
+    public static List<Album> read(ByteBuffer in) throws IOException {
+        if (in.remaining() < 6 || in.getInt() != MAGIC) {
+            throw new IOException("Not an album store");
+        }
+        short version = in.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported album store version " + version);
+        }
+        String[] strings = readStringTable(in);
+
+        int albumCount = readVarInt(in);
+        List<Album> albums = new ArrayList<>(albumCount);
+        for (int i = 0; i < albumCount; i++) {
+            int length = readVarInt(in);
+            int end = in.position() + length;
+            String name = strings[readVarInt(in)];
+            albums.add(new Album(name, readPhotos(in, strings)));
+            in.position(end);
+        }
+        return albums;
+    }
+
+    static void writePhotos(DataOutputStream out, List<Photo> photos, StringTable strings) throws IOException {
+        writeVarInt(out, photos.size());
+        for (Photo photo : photos) {
+            String uri = photo.getUriString();
+            int split = uri.lastIndexOf('/') + 1;
+            writeVarInt(out, strings.indexOf(uri.substring(0, split)));
+            writeVarInt(out, strings.indexOf(uri.substring(split)));
+            writeVarInt(out, strings.indexOf(photo.getFileName()));
+            List<Tag> tags = photo.getTags();
+            writeVarInt(out, tags.size());
+            for (Tag tag : tags) {
+                writeVarInt(out, strings.indexOf(tag.getName()));
+                writeVarInt(out, strings.indexOf(tag.getValue()));
+            }
+        }
+    }
+
+    static List<Photo> readPhotos(ByteBuffer in, String[] strings) {
+        int photoCount = readVarInt(in);
+        List<Photo> photos = new ArrayList<>(photoCount);
+        for (int i = 0; i < photoCount; i++) {
+            String uri = strings[readVarInt(in)].concat(strings[readVarInt(in)]);
+            Photo photo = new Photo(uri, strings[readVarInt(in)]);
+            int tagCount = readVarInt(in);
+            for (int t = 0; t < tagCount; t++) {
+                photo.addTag(strings[readVarInt(in)], strings[readVarInt(in)]);
+            }
+            photos.add(photo);
+        }
+        return photos;
+    }
+
+    static void writeStringTable(DataOutputStream out, StringTable strings) throws IOException {
+        writeVarInt(out, strings.values.size());
+        for (String value : strings.values) {
+            writeString(out, value);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readVarInt(in);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String[] readStringTable(ByteBuffer in) {
+        String[] strings = new String[readVarInt(in)];
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readVarInt(in);
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            in.get(scratch, 0, length);
+            strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Assigns each distinct string an index in first-seen order.
+     */
+    static class StringTable {
+        final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        int indexOf(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                values.add(value);
+                indexes.put(value, index);
+            }
+            return index;
+        }
+    }
+}
@@ -3,26 +3,43 @@ package com.softmeth.androidphotos.data;
 import android.content.Context;
 import com.softmeth.androidphotos.models.Album;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Manages saving and loading album data using serialization.
+ * Manages saving and loading album data.
+ * Albums are kept in a {@link SectionedAlbumStore}, so loading only reads the
+ * manifest and each album's photos are decoded when first used. Files written
+ * by older versions (albums.dat, albums.bin) are migrated once.
  */
 public class DataManager {
-    private static final String ALBUMS_FILE = "albums.dat";
+    private static final String BINARY_ALBUMS_FILE = "albums.bin";
+    private static final String LEGACY_ALBUMS_FILE = "albums.dat";
+    
+    private static SectionedAlbumStore store;
+    
+    private static synchronized SectionedAlbumStore getStore(Context context) {
+        if (store == null) {
+            store = new SectionedAlbumStore(context.getFilesDir());
+        }
+        return store;
+    }
     
     /**
      * Saves the list of albums to internal storage.
+     * The store commits by renaming its manifest, so a crash mid-write
+     * never leaves a half-written library behind.
      */
     public static boolean saveAlbums(Context context, List<Album> albums) {
-        try (FileOutputStream fos = context.openFileOutput(ALBUMS_FILE, Context.MODE_PRIVATE);
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            oos.writeObject(albums);
+        try {
+            getStore(context).save(albums);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -30,18 +47,79 @@ public class DataManager {
         }
     }
     
+    /**
+     * Generation of the snapshot on disk, so the journal can tell which of
+     * its rotated records the snapshot already contains.
+     */
+    public static long getSnapshotGeneration(Context context) {
+        return getStore(context).getGeneration();
+    }
+    
     /**
      * Loads the list of albums from internal storage.
+     * Photos stay on disk until an album is opened.
      * Returns an empty list if no data exists or an error occurs.
      */
-    @SuppressWarnings("unchecked")
     public static List<Album> loadAlbums(Context context) {
-        try (FileInputStream fis = context.openFileInput(ALBUMS_FILE);
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            return (List<Album>) ois.readObject();
+        SectionedAlbumStore albumStore = getStore(context);
+        if (!albumStore.exists()) {
+            return migrateOldAlbums(context);
+        }
+        try {
+            return albumStore.load();
         } catch (Exception e) {
-            // File doesn't exist or error occurred - return empty list
+            e.printStackTrace();
             return new ArrayList<>();
         }
     }
+    
+    /**
+     * Reads a library saved by an older version and rewrites it in the
+     * sectioned store. The old file is only deleted once the new one is saved.
+     */
+    private static List<Album> migrateOldAlbums(Context context) {
+        File binary = context.getFileStreamPath(BINARY_ALBUMS_FILE);
+        File legacy = context.getFileStreamPath(LEGACY_ALBUMS_FILE);
+        File old;
+        List<Album> albums;
+        try {
+            if (binary.exists()) {
+                old = binary;
+                albums = readBinaryAlbums(binary);
+            } else if (legacy.exists()) {
+                old = legacy;
+                albums = readSerializedAlbums(legacy);
+            } else {
+                return new ArrayList<>();
+            }
+        } catch (Exception e) {
+            // Unreadable old data - start with an empty library
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+        if (saveAlbums(context, albums)) {
+            old.delete();
+        }
+        return albums;
+    }
+    
+    private static List<Album> readBinaryAlbums(File file) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // Keep reading until the whole file is in memory
+            }
+            buffer.flip();
+            return BinaryAlbumFormat.read(buffer);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<Album> readSerializedAlbums(File file) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            return (List<Album>) ois.readObject();
+        }
+    }
 }
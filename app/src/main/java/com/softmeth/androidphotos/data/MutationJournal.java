@@ -0,0 +1,407 @@
+package com.softmeth.androidphotos.data;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of album edits kept next to the albums snapshot.
+ * Each edit is written as one small record, so saving costs the size of the
+ * edit rather than the size of the library. Replaying the log on top of the
+ * last snapshot gives the current library.
+ *
+ * Record layout: int length, payload, int CRC32 of the payload.
+ * The payload is a type byte followed by the record's strings.
+ *
+ * Before a snapshot is written the journal is rotated to
+ * albums.journal.&lt;generation&gt;.old, named after the snapshot generation
+ * that will contain its records. The snapshot's manifest rename therefore
+ * also commits the rotated file: on the next load a rotated file whose
+ * generation the snapshot has reached is deleted unread, so no record is
+ * ever applied twice.
+ */
+public class MutationJournal {
+    static final String JOURNAL_FILE = "albums.journal";
+    static final String ROTATED_PREFIX = "albums.journal.";
+    static final String ROTATED_SUFFIX = ".old";
+    // Written before rotated files were named by generation
+    static final String LEGACY_ROTATED_FILE = "albums.journal.old";
+
+    public static final byte CREATE_ALBUM = 1;
+    public static final byte RENAME_ALBUM = 2;
+    public static final byte DELETE_ALBUM = 3;
+    public static final byte ADD_PHOTO = 4;
+    public static final byte REMOVE_PHOTO = 5;
+    public static final byte MOVE_PHOTO = 6;
+    public static final byte ADD_TAG = 7;
+    public static final byte REMOVE_TAG = 8;
+
+    /**
+     * One journaled edit. Immutable so it can be handed to another thread.
+     */
+    public static class Record {
+        final byte type;
+        final String[] args;
+
+        Record(byte type, String... args) {
+            this.type = type;
+            this.args = args;
+        }
+
+        public static Record createAlbum(String name) {
+            return new Record(CREATE_ALBUM, name);
+        }
+
+        public static Record renameAlbum(String oldName, String newName) {
+            return new Record(RENAME_ALBUM, oldName, newName);
+        }
+
+        public static Record deleteAlbum(String name) {
+            return new Record(DELETE_ALBUM, name);
+        }
+
+        public static Record addPhoto(String album, Photo photo) {
+            return new Record(ADD_PHOTO, album, photo.getUriString(), photo.getFileName());
+        }
+
+        public static Record removePhoto(String album, Photo photo) {
+            return new Record(REMOVE_PHOTO, album, photo.getUriString());
+        }
+
+        public static Record movePhoto(String from, String to, Photo photo) {
+            return new Record(MOVE_PHOTO, from, to, photo.getUriString());
+        }
+
+        public static Record addTag(String album, Photo photo, String tagName, String tagValue) {
+            return new Record(ADD_TAG, album, photo.getUriString(), tagName, tagValue);
+        }
+
+        public static Record removeTag(String album, Photo photo, String tagName, String tagValue) {
+            return new Record(REMOVE_TAG, album, photo.getUriString(), tagName, tagValue);
+        }
+    }
+
+    private final File dir;
+    private final File journalFile;
+    private File rotatedFile;  // Rotated records not yet in a snapshot, or null
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long size;
+
+    public MutationJournal(File dir) {
+        this.dir = dir;
+        this.journalFile = new File(dir, JOURNAL_FILE);
+    }
+
+    /**
+     * Applies the records the snapshot does not contain yet, from the
+     * rotated and current journal files, to the given albums, then opens
+     * the journal for appending. Rotated files already in the snapshot are
+     * deleted. A torn record at the end of the current file (e.g. after a
+     * crash) is cut off.
+     *
+     * @param snapshotGeneration generation of the snapshot the albums were loaded from
+     */
+    public void replay(List<Album> albums, long snapshotGeneration) throws IOException {
+        File legacy = new File(dir, LEGACY_ROTATED_FILE);
+        if (legacy.exists()) {
+            readFile(legacy, albums);
+            rotatedFile = legacy;
+        }
+        File[] files = dir.listFiles((d, name) -> rotatedGeneration(name) > 0);
+        if (files != null) {
+            // Only the newest can be ahead of the snapshot; older ones are leftovers
+            Arrays.sort(files, Comparator.comparingLong(file -> rotatedGeneration(file.getName())));
+            for (File file : files) {
+                if (rotatedGeneration(file.getName()) <= snapshotGeneration) {
+                    file.delete();
+                } else {
+                    readFile(file, albums);
+                    rotatedFile = file;
+                }
+            }
+        }
+        long validLength = journalFile.exists() ? readFile(journalFile, albums) : 0;
+        if (journalFile.exists() && validLength < journalFile.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        size = validLength;
+        open();
+    }
+
+    /**
+     * Appends one record to the write buffer. Call {@link #sync()} to make
+     * a batch of appended records durable.
+     */
+    public void append(Record record) throws IOException {
+        if (out == null) {
+            open();
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(buffer);
+        payload.writeByte(record.type);
+        payload.writeByte(record.args.length);
+        for (String arg : record.args) {
+            payload.writeUTF(arg);
+        }
+        byte[] bytes = buffer.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        size += 8 + bytes.length;
+    }
+
+    /**
+     * Flushes buffered records and forces them to storage.
+     */
+    public void sync() throws IOException {
+        if (out != null) {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    /**
+     * Bytes of edits written since the last rotation.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Moves the current records aside so a snapshot can be written while new
+     * edits go to a fresh file. If an earlier rotated file is still around
+     * (its snapshot failed), the current records are appended to it.
+     *
+     * @param snapshotGeneration generation the snapshot about to be written will have
+     */
+    public void rotate(long snapshotGeneration) throws IOException {
+        close();
+        File target = new File(dir, ROTATED_PREFIX + snapshotGeneration + ROTATED_SUFFIX);
+        if (rotatedFile != null && !rotatedFile.equals(target)) {
+            if (!rotatedFile.renameTo(target)) {
+                throw new IOException("Could not rotate " + rotatedFile);
+            }
+            rotatedFile = target;
+        }
+        if (journalFile.exists()) {
+            if (rotatedFile != null) {
+                try (InputStream in = new FileInputStream(journalFile);
+                     OutputStream rotated = new FileOutputStream(rotatedFile, true)) {
+                    byte[] chunk = new byte[8192];
+                    int n;
+                    while ((n = in.read(chunk)) != -1) {
+                        rotated.write(chunk, 0, n);
+                    }
+                }
+                journalFile.delete();
+            } else if (!journalFile.renameTo(target)) {
+                throw new IOException("Could not rotate " + journalFile);
+            } else {
+                rotatedFile = target;
+            }
+        }
+        size = 0;
+        open();
+    }
+
+    public boolean hasRotated() {
+        return rotatedFile != null;
+    }
+
+    /**
+     * Drops the rotated records once a snapshot containing them is on disk.
+     * Only tidies up: a crash before this runs is handled by {@link #replay}.
+     */
+    public void discardRotated() {
+        if (rotatedFile != null) {
+            rotatedFile.delete();
+            rotatedFile = null;
+        }
+    }
+
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    /**
+     * The generation in a rotated file's name, or 0 if it is not one.
+     */
+    private static long rotatedGeneration(String name) {
+        if (!name.startsWith(ROTATED_PREFIX) || !name.endsWith(ROTATED_SUFFIX)
+                || name.length() <= ROTATED_PREFIX.length() + ROTATED_SUFFIX.length()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(ROTATED_PREFIX.length(),
+                    name.length() - ROTATED_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void open() throws IOException {
+        fileOut = new FileOutputStream(journalFile, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * Applies the records in one file and returns the length of its valid prefix.
+     */
+    private long readFile(File file, List<Album> albums) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                byte[] bytes;
+                int storedCrc;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > file.length()) {
+                        break;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    storedCrc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+                apply(albums, decode(bytes));
+                valid += 8 + length;
+            }
+        }
+        return valid;
+    }
+
+    private static Record decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte type = in.readByte();
+        String[] args = new String[in.readUnsignedByte()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        return new Record(type, args);
+    }
+
+    /**
+     * Applies one record to the albums.
+     * Records that no longer fit (missing album, name already taken) are
+     * skipped rather than failing the whole replay.
+     */
+    static void apply(List<Album> albums, Record record) {
+        String[] a = record.args;
+        switch (record.type) {
+            case CREATE_ALBUM:
+                if (findAlbum(albums, a[0]) == null) {
+                    albums.add(new Album(a[0]));
+                }
+                break;
+            case RENAME_ALBUM: {
+                Album album = findAlbum(albums, a[0]);
+                Album existing = findAlbum(albums, a[1]);
+                if (album != null && (existing == null || existing == album)) {
+                    album.setName(a[1]);
+                }
+                break;
+            }
+            case DELETE_ALBUM: {
+                Album album = findAlbum(albums, a[0]);
+                if (album != null) {
+                    albums.remove(album);
+                }
+                break;
+            }
+            case ADD_PHOTO: {
+                Album album = findAlbum(albums, a[0]);
+                if (album != null) {
+                    album.addPhoto(new Photo(a[1], a[2]));
+                }
+                break;
+            }
+            case REMOVE_PHOTO: {
+                Album album = findAlbum(albums, a[0]);
+                Photo photo = findPhoto(album, a[1]);
+                if (photo != null) {
+                    album.removePhoto(photo);
+                }
+                break;
+            }
+            case MOVE_PHOTO: {
+                Album from = findAlbum(albums, a[0]);
+                Album to = findAlbum(albums, a[1]);
+                Photo photo = findPhoto(from, a[2]);
+                if (photo != null && to != null && to.addPhoto(photo)) {
+                    from.removePhoto(photo);
+                }
+                break;
+            }
+            case ADD_TAG: {
+                Photo photo = findPhoto(findAlbum(albums, a[0]), a[1]);
+                if (photo != null) {
+                    photo.addTag(a[2], a[3]);
+                }
+                break;
+            }
+            case REMOVE_TAG: {
+                Photo photo = findPhoto(findAlbum(albums, a[0]), a[1]);
+                if (photo != null) {
+                    photo.removeTag(a[2], a[3]);
+                }
+                break;
+            }
+            default:
+                // Unknown record from a newer version - ignore it
+                break;
+        }
+    }
+
+    private static Album findAlbum(List<Album> albums, String name) {
+        for (Album album : albums) {
+            // Records carry the exact name, as AlbumRepository looks albums up
+            if (album.getName().equals(name)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    private static Photo findPhoto(Album album, String uriString) {
+        return album == null ? null : album.findPhoto(uriString);
+    }
+}
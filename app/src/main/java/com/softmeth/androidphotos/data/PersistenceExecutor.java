@@ -0,0 +1,255 @@
+package com.softmeth.androidphotos.data;
+
+import android.content.Context;
+import com.softmeth.androidphotos.models.Album;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Single background thread that owns the journal and the snapshot file.
+ * The UI thread only queues work here, so saving never blocks a frame.
+ *
+ * Records queued within {@link #COALESCE_WINDOW_MS} of each other are
+ * written as one batch with a single flush and sync. A queued snapshot
+ * replaces any older snapshot that has not been written yet.
+ */
+public class PersistenceExecutor {
+    static final long COALESCE_WINDOW_MS = 250;
+
+    /**
+     * A full copy of the albums to write as the new snapshot.
+     */
+    private static class Snapshot {
+        final List<Album> albums;
+
+        Snapshot(List<Album> albums) {
+            this.albums = albums;
+        }
+    }
+
+    private final Context context;
+    private final MutationJournal journal;
+    private final ScheduledExecutorService writer;
+
+    private final Object lock = new Object();
+    private List<Object> pending = new ArrayList<>();  // Records and Snapshots, in order
+    private boolean drainScheduled;
+    private boolean snapshotPending;
+
+    private volatile long journalSize;
+    private volatile boolean snapshotNeeded;
+
+    private volatile long writeCount;
+    private volatile long lastWriteMillis;
+    private volatile long maxWriteMillis;
+    private volatile long totalWriteMillis;
+
+    /**
+     * @param journal an already replayed journal; from now on only the writer thread touches it
+     */
+    public PersistenceExecutor(Context context, MutationJournal journal) {
+        this.context = context;
+        this.journal = journal;
+        this.journalSize = journal.size();
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "album-writer");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues one edit. It is written together with any other edits that
+     * arrive within the coalescing window.
+     */
+    public void submit(MutationJournal.Record record) {
+        synchronized (lock) {
+            pending.add(record);
+            scheduleDrainLocked();
+        }
+    }
+
+    /**
+     * Queues a batch of edits that belong together. They are written in
+     * the same drain, one after the other, and made durable by one sync.
+     */
+    public void submitAll(List<MutationJournal.Record> records) {
+        synchronized (lock) {
+            pending.addAll(records);
+            scheduleDrainLocked();
+        }
+    }
+
+    /**
+     * Queues a new snapshot. The journal is rotated right before it is
+     * written, after every record queued ahead of it.
+     */
+    public void submitSnapshot(List<Album> albums) {
+        synchronized (lock) {
+            // An older snapshot still in the queue is now out of date
+            pending.removeIf(op -> op instanceof Snapshot);
+            pending.add(new Snapshot(albums));
+            snapshotPending = true;
+            snapshotNeeded = false;
+            scheduleDrainLocked();
+        }
+    }
+
+    /**
+     * Starts writing everything queued now instead of waiting out the
+     * coalescing window. Does not block.
+     */
+    public void flush() {
+        writer.execute(this::drain);
+    }
+
+    /**
+     * Writes everything queued and waits for it, e.g. before the process may
+     * be killed. Returns false if the write did not finish in time.
+     */
+    public boolean flushAndWait(long timeoutMillis) {
+        try {
+            writer.submit(this::drain).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Number of edits and snapshots waiting to be written.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public boolean isSnapshotPending() {
+        synchronized (lock) {
+            return snapshotPending;
+        }
+    }
+
+    /**
+     * True after a journal write failed; a full snapshot is then the only
+     * way to get the edits onto disk.
+     */
+    public boolean isSnapshotNeeded() {
+        return snapshotNeeded;
+    }
+
+    /**
+     * Journal bytes written since the last snapshot.
+     */
+    public long getJournalSize() {
+        return journalSize;
+    }
+
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    public long getLastWriteMillis() {
+        return lastWriteMillis;
+    }
+
+    public long getMaxWriteMillis() {
+        return maxWriteMillis;
+    }
+
+    public long getAverageWriteMillis() {
+        long count = writeCount;
+        return count == 0 ? 0 : totalWriteMillis / count;
+    }
+
+    private void scheduleDrainLocked() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            writer.schedule(this::drain, COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs on the writer thread. Takes the whole queue and writes it in order.
+     */
+    private void drain() {
+        List<Object> ops;
+        synchronized (lock) {
+            ops = pending;
+            pending = new ArrayList<>();
+            drainScheduled = false;
+        }
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean wroteSnapshot = false;
+        for (Object op : ops) {
+            if (op instanceof MutationJournal.Record) {
+                append((MutationJournal.Record) op);
+            } else {
+                writeSnapshot((Snapshot) op);
+                wroteSnapshot = true;
+            }
+        }
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            snapshotNeeded = true;
+        }
+        journalSize = journal.size();
+        if (wroteSnapshot) {
+            synchronized (lock) {
+                // A newer snapshot may have been queued meanwhile
+                snapshotPending = pending.stream().anyMatch(op -> op instanceof Snapshot);
+            }
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastWriteMillis = elapsed;
+        maxWriteMillis = Math.max(maxWriteMillis, elapsed);
+        totalWriteMillis += elapsed;
+        writeCount++;
+    }
+
+    private void append(MutationJournal.Record record) {
+        try {
+            journal.append(record);
+        } catch (IOException e) {
+            e.printStackTrace();
+            snapshotNeeded = true;
+        }
+    }
+
+    private void writeSnapshot(Snapshot snapshot) {
+        try {
+            journal.sync();
+            // Named after the generation the save below commits
+            journal.rotate(DataManager.getSnapshotGeneration(context) + 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            snapshotNeeded = true;
+            return;
+        }
+        // Keep the rotated records if the snapshot fails; they are
+        // replayed on the next load and folded into the next snapshot
+        if (DataManager.saveAlbums(context, snapshot.albums)) {
+            journal.discardRotated();
+        } else {
+            snapshotNeeded = true;
+        }
+    }
+}
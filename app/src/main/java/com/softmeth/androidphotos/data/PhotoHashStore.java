@@ -0,0 +1,203 @@
+package com.softmeth.androidphotos.data;
+
+import android.content.Context;
+
+import com.softmeth.androidphotos.search.HammingIndex;
+import com.softmeth.androidphotos.search.PostingList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content and perceptual hashes of imported photos, so an import can tell
+ * that a picture is already in the album under a different URI without
+ * reading any of the album's images again.
+ *
+ * Hashes are appended to a small file next to the albums as photos are
+ * imported and indexed in memory on first use: exact matches by content
+ * hash, near matches by difference hash through a {@link HammingIndex}.
+ * Entries are never removed when a photo leaves an album; callers check
+ * the URIs they get back against the album.
+ *
+ * Thread-safe.
+ */
+public class PhotoHashStore {
+    static final String HASHES_FILE = "photo_hashes";
+    /** Difference hashes at most this many bits apart are the same picture. */
+    public static final int NEAR_DUPLICATE_DISTANCE = 8;
+
+    private static PhotoHashStore instance;
+
+    private final File file;
+    private final List<String> uris = new ArrayList<>();  // By id; null once replaced
+    private final List<long[]> hashes = new ArrayList<>();  // By id: content, image
+    private final Map<String, Integer> idByUri = new HashMap<>();
+    private final Map<Long, PostingList> byContent = new HashMap<>();
+    private HammingIndex byImage;
+    private DataOutputStream out;
+
+    PhotoHashStore(File dir) {
+        this.file = new File(dir, HASHES_FILE);
+    }
+
+    public static synchronized PhotoHashStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new PhotoHashStore(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the file into memory if that has not happened yet. Call off
+     * the main thread before the first lookup.
+     */
+    public synchronized void ensureLoaded() {
+        if (byImage != null) {
+            return;
+        }
+        byImage = new HammingIndex();
+        boolean torn = false;
+        int replaced = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (in.available() > 0) {
+                    String uri = in.readUTF();
+                    long contentHash = in.readLong();
+                    long imageHash = in.readLong();
+                    if (index(uri, contentHash, imageHash)) {
+                        replaced++;
+                    }
+                }
+            } catch (IOException e) {
+                // A torn last entry from a crash; keep everything before it
+                e.printStackTrace();
+                torn = true;
+            }
+        }
+        // Appending after a torn entry would garble the next load
+        if (torn || replaced > idByUri.size()) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Records the hashes of photos, replacing any earlier ones for their
+     * URIs, with a single write to the file.
+     */
+    public synchronized void putAll(List<String> uris, long[] contentHashes, long[] imageHashes) {
+        ensureLoaded();
+        for (int i = 0; i < uris.size(); i++) {
+            index(uris.get(i), contentHashes[i], imageHashes[i]);
+        }
+        try {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+            for (int i = 0; i < uris.size(); i++) {
+                out.writeUTF(uris.get(i));
+                out.writeLong(contentHashes[i]);
+                out.writeLong(imageHashes[i]);
+            }
+            // No sync: a lost entry only means one duplicate goes unnoticed
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * URIs of photos whose file is byte for byte the same.
+     */
+    public synchronized List<String> findIdentical(long contentHash) {
+        ensureLoaded();
+        List<String> result = new ArrayList<>();
+        PostingList ids = byContent.get(contentHash);
+        if (ids != null) {
+            for (int i = 0; i < ids.size(); i++) {
+                result.add(uris.get(ids.get(i)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * URIs of photos whose picture looks the same, including identical ones.
+     */
+    public synchronized List<String> findSimilar(long imageHash, int maxDistance) {
+        ensureLoaded();
+        List<String> result = new ArrayList<>();
+        PostingList ids = byImage.search(imageHash, maxDistance);
+        for (int i = 0; i < ids.size(); i++) {
+            result.add(uris.get(ids.get(i)));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return idByUri.size();
+    }
+
+    /**
+     * @return true if the URI had an entry already
+     */
+    private boolean index(String uri, long contentHash, long imageHash) {
+        Integer old = idByUri.get(uri);
+        if (old != null) {
+            long[] oldHashes = hashes.get(old);
+            PostingList sameContent = byContent.get(oldHashes[0]);
+            sameContent.remove(old);
+            if (sameContent.isEmpty()) {
+                byContent.remove(oldHashes[0]);
+            }
+            byImage.remove(old);
+            uris.set(old, null);
+        }
+        int id = uris.size();
+        uris.add(uri);
+        hashes.add(new long[]{contentHash, imageHash});
+        idByUri.put(uri, id);
+        PostingList sameContent = byContent.get(contentHash);
+        if (sameContent == null) {
+            sameContent = new PostingList();
+            byContent.put(contentHash, sameContent);
+        }
+        sameContent.add(id);
+        byImage.add(id, imageHash);
+        return old != null;
+    }
+
+    /**
+     * Writes only the live entries, through a temporary file so a crash
+     * leaves the old file in place.
+     */
+    private void rewrite() {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for (int id = 0; id < uris.size(); id++) {
+                String uri = uris.get(id);
+                if (uri != null) {
+                    tempOut.writeUTF(uri);
+                    tempOut.writeLong(hashes.get(id)[0]);
+                    tempOut.writeLong(hashes.get(id)[1]);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+}
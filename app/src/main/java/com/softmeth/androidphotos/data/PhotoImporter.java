@@ -0,0 +1,472 @@
+package com.softmeth.androidphotos.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+
+import com.softmeth.androidphotos.images.ImageHashes;
+import com.softmeth.androidphotos.images.ThumbnailLoader;
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports a batch of picked images into an album.
+ *
+ * A few worker threads take the picked URIs in order. For each one they
+ * keep read access across restarts, look up its display name, read its
+ * dimensions to make sure it is an image, hash its bytes, and write its
+ * grid thumbnail to the disk cache. The difference hash is taken from that
+ * thumbnail, so the image is decoded once. The album is only touched once
+ * every URI is done: all new photos are then added through
+ * {@link AlbumRepository#addPhotos}, which journals them as one batch, and
+ * only their hashes are recorded.
+ *
+ * The hashes catch a picture that is already in the album under another
+ * URI, e.g. picked once through the gallery and once through the file
+ * manager. An identical file is left out; a picture that only looks the
+ * same (re-saved, resized) is added but counted as similar. Picks in the
+ * same batch are compared with each other too. Only photos imported since
+ * hashing was added can be recognised this way.
+ *
+ * Progress and the result are reported on the main thread. Cancelling
+ * stops the workers after the image each one is on, and nothing is added.
+ *
+ * The importer is shared and runs one batch at a time. The batch outlives
+ * the screen that started it: a screen recreated after a rotation finds it
+ * through {@link #getBatch()} and attaches a new listener. A result that
+ * arrives while no listener is attached is kept for the next one.
+ */
+public class PhotoImporter {
+    static final int MAX_WORKERS = 4;
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        void onProgress(int done, int total);
+
+        void onFinished(Result result);
+    }
+
+    public static final class Result {
+        public final int added;
+        public final int skipped;     // URI already in the album, or picked twice
+        public final int duplicates;  // Same file as a photo in the album under another URI
+        public final int similar;     // Added, but looks like a photo already in the album
+        public final int failed;      // Unreadable or not an image
+        public final boolean cancelled;
+
+        Result(int added, int skipped, int duplicates, int similar, int failed, boolean cancelled) {
+            this.added = added;
+            this.skipped = skipped;
+            this.duplicates = duplicates;
+            this.similar = similar;
+            this.failed = failed;
+            this.cancelled = cancelled;
+        }
+    }
+
+    /**
+     * What a worker found out about one picked URI.
+     */
+    private static final class Picked {
+        final Photo photo;
+        final boolean hashed;
+        final long contentHash;
+        final long imageHash;
+
+        Picked(Photo photo, boolean hashed, long contentHash, long imageHash) {
+            this.photo = photo;
+            this.hashed = hashed;
+            this.contentHash = contentHash;
+            this.imageHash = imageHash;
+        }
+    }
+
+    /**
+     * A running import. Everything but {@link #cancel()} and the counters
+     * belongs to the main thread.
+     */
+    public static final class Batch {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger done = new AtomicInteger();
+        private final Album album;
+        private final int total;
+        private ExecutorService executor;
+        private Listener listener;
+        private Result result;  // Set once committed
+        private boolean delivered;
+
+        Batch(Album album, int total) {
+            this.album = album;
+            this.total = total;
+        }
+
+        /**
+         * Replaces the listener, or detaches it when null. If the batch has
+         * finished and no listener was told yet, this one is told now.
+         */
+        public void setListener(Listener listener) {
+            this.listener = listener;
+            if (listener != null && result != null && !delivered) {
+                delivered = true;
+                listener.onFinished(result);
+            }
+        }
+
+        void progress() {
+            if (listener != null && result == null) {
+                listener.onProgress(done.get(), total);
+            }
+        }
+
+        void finish(Result result) {
+            this.result = result;
+            if (listener != null) {
+                delivered = true;
+                listener.onFinished(result);
+            }
+        }
+
+        public Album getAlbum() {
+            return album;
+        }
+
+        public boolean isFinished() {
+            return result != null;
+        }
+
+        /**
+         * True once a listener has been told the result.
+         */
+        public boolean isDelivered() {
+            return delivered;
+        }
+
+        /**
+         * Call on the main thread. Workers waiting for a thumbnail decode
+         * are interrupted rather than left to finish it.
+         */
+        public void cancel() {
+            cancelled.set(true);
+            if (executor != null) {
+                // Workers that never started still have to count themselves
+                // out, or the batch would never finish. Cancelled, they
+                // return straight away.
+                for (Runnable worker : executor.shutdownNow()) {
+                    worker.run();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getDone() {
+            return done.get();
+        }
+    }
+
+    private static PhotoImporter instance;
+
+    private final ContentResolver resolver;
+    private final AlbumRepository repository;
+    private final ThumbnailLoader thumbnailLoader;
+    private final PhotoHashStore hashStore;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Batch batch;  // The latest batch; main thread only
+
+    private PhotoImporter(Context context) {
+        this.resolver = context.getContentResolver();
+        this.repository = AlbumRepository.getInstance(context);
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
+        this.hashStore = PhotoHashStore.getInstance(context);
+    }
+
+    public static synchronized PhotoImporter getInstance(Context context) {
+        if (instance == null) {
+            instance = new PhotoImporter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * The latest batch, finished or not, or null if none was started.
+     */
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public boolean isImporting() {
+        return batch != null && !batch.isFinished();
+    }
+
+    static int workerCount(int total) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(total, Math.min(MAX_WORKERS, cores)));
+    }
+
+    /**
+     * Starts importing. Call on the main thread.
+     *
+     * @param thumbnailWidth grid cell size to pre-generate thumbnails at, or 0 to skip that
+     * @return the new batch, or null if another one is still running
+     */
+    public Batch importPhotos(Album album, List<Uri> uris, int thumbnailWidth, int thumbnailHeight,
+                              Listener listener) {
+        if (isImporting()) {
+            return null;
+        }
+        Batch batch = new Batch(album, uris.size());
+        this.batch = batch;
+        batch.setListener(listener);
+        if (uris.isEmpty()) {
+            batch.finish(new Result(0, 0, 0, 0, 0, false));
+            return batch;
+        }
+        Picked[] picked = new Picked[uris.size()];  // Picked order, null where it failed
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger(workerCount(uris.size()));
+        AtomicBoolean progressPosted = new AtomicBoolean();
+
+        Runnable worker = () -> {
+            try {
+                if (!batch.isCancelled()) {
+                    hashStore.ensureLoaded();  // Only the first worker waits for the file
+                }
+                int i;
+                while (!batch.isCancelled() && (i = next.getAndIncrement()) < uris.size()) {
+                    try {
+                        picked[i] = importOne(uris.get(i), thumbnailWidth, thumbnailHeight);
+                    } catch (RuntimeException e) {
+                        // E.g. a provider refusing the URI; counted as failed
+                        e.printStackTrace();
+                    }
+                    batch.done.incrementAndGet();
+                    // At most one progress update waiting on the main thread
+                    if (progressPosted.compareAndSet(false, true)) {
+                        mainHandler.post(() -> {
+                            progressPosted.set(false);
+                            batch.progress();
+                        });
+                    }
+                }
+            } finally {
+                // Even a worker that died must not leave the batch running forever
+                if (running.decrementAndGet() == 0) {
+                    mainHandler.post(() -> batch.finish(commit(album, picked, batch)));
+                }
+            }
+        };
+
+        int workers = running.get();
+        AtomicInteger threadIds = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "photo-import-" + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        batch.executor = executor;
+        for (int w = 0; w < workers; w++) {
+            executor.execute(worker);
+        }
+        executor.shutdown();  // Threads exit once the batch is done
+        return batch;
+    }
+
+    /**
+     * Runs on the main thread once every worker has stopped.
+     */
+    private Result commit(Album album, Picked[] picked, Batch batch) {
+        if (batch.isCancelled() || !repository.getAlbums().contains(album)) {
+            return new Result(0, 0, 0, 0, 0, true);
+        }
+        Set<String> inAlbum = new HashSet<>();
+        for (Photo photo : album.getPhotos()) {
+            inAlbum.add(photo.getUriString());
+        }
+        List<Photo> imported = new ArrayList<>(picked.length);
+        List<Picked> hashedNew = new ArrayList<>();  // Not in the hash store yet
+        int failed = 0;
+        int duplicates = 0;
+        int similar = 0;
+        for (Picked p : picked) {
+            if (p == null) {
+                failed++;
+                continue;
+            }
+            String uri = p.photo.getUriString();
+            if (p.hashed && !inAlbum.contains(uri)) {
+                if (containsOther(inAlbum, hashStore.findIdentical(p.contentHash), uri)
+                        || sameFileAsEarlier(hashedNew, p)) {
+                    duplicates++;
+                    continue;
+                }
+                if (containsOther(inAlbum, hashStore.findSimilar(p.imageHash,
+                        PhotoHashStore.NEAR_DUPLICATE_DISTANCE), uri)
+                        || looksLikeEarlier(hashedNew, p)) {
+                    similar++;
+                }
+                hashedNew.add(p);
+            }
+            inAlbum.add(uri);
+            imported.add(p.photo);
+        }
+        int added = repository.addPhotos(album, imported);
+        recordHashes(album, hashedNew);
+        return new Result(added, imported.size() - added, duplicates, similar, failed, false);
+    }
+
+    /**
+     * Earlier picks of the same batch are not in the hash store yet, so
+     * they are checked here. Batches are a few hundred picks at most, so a
+     * linear scan is enough.
+     */
+    private static boolean sameFileAsEarlier(List<Picked> earlier, Picked p) {
+        for (Picked e : earlier) {
+            if (e.contentHash == p.contentHash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean looksLikeEarlier(List<Picked> earlier, Picked p) {
+        for (Picked e : earlier) {
+            if (ImageHashes.distance(e.imageHash, p.imageHash) <= PhotoHashStore.NEAR_DUPLICATE_DISTANCE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores the hashes of the picks that are now in the album, in one
+     * small append.
+     */
+    private void recordHashes(Album album, List<Picked> picks) {
+        List<String> uris = new ArrayList<>(picks.size());
+        long[] contentHashes = new long[picks.size()];
+        long[] imageHashes = new long[picks.size()];
+        for (Picked p : picks) {
+            if (album.findPhoto(p.photo.getUriString()) == p.photo) {
+                contentHashes[uris.size()] = p.contentHash;
+                imageHashes[uris.size()] = p.imageHash;
+                uris.add(p.photo.getUriString());
+            }
+        }
+        if (!uris.isEmpty()) {
+            hashStore.putAll(uris, contentHashes, imageHashes);
+        }
+    }
+
+    private static boolean containsOther(Set<String> inAlbum, List<String> matches, String self) {
+        for (String match : matches) {
+            if (!match.equals(self) && inAlbum.contains(match)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs on a worker thread. Returns null if the image cannot be used.
+     */
+    private Picked importOne(Uri uri, int thumbnailWidth, int thumbnailHeight) {
+        try {
+            resolver.takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // If we can't get persistable permission, the URI might still work
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                return null;
+            }
+            BitmapFactory.decodeStream(in, null, options);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;  // Not an image we can decode
+        }
+
+        boolean hashed = false;
+        long contentHash = 0;
+        long[] imageHash = new long[1];
+        try {
+            contentHash = ImageHashes.contentHash(resolver, uri);
+            hashed = true;
+        } catch (IOException e) {
+            // Import it anyway; it just cannot be checked for duplicates
+            e.printStackTrace();
+        }
+
+        if (thumbnailWidth > 0 && thumbnailHeight > 0) {
+            boolean[] imageHashed = new boolean[1];
+            try {
+                thumbnailLoader.pregenerate(uri, thumbnailWidth, thumbnailHeight, thumbnail -> {
+                    try {
+                        imageHash[0] = ImageHashes.differenceHash(thumbnail);
+                        imageHashed[0] = true;
+                    } catch (OutOfMemoryError e) {
+                        e.printStackTrace();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            hashed &= imageHashed[0];
+        } else if (hashed) {
+            // The grid has not been measured, so there is no thumbnail to hash
+            try {
+                imageHash[0] = ImageHashes.differenceHash(resolver, uri);
+            } catch (IOException | OutOfMemoryError e) {
+                e.printStackTrace();
+                hashed = false;
+            }
+        }
+        return new Picked(new Photo(uri, displayName(uri)), hashed, contentHash, imageHash[0]);
+    }
+
+    private String displayName(Uri uri) {
+        try (Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME},
+                null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int index = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (index >= 0 && !cursor.isNull(index)) {
+                    return cursor.getString(index);
+                }
+            }
+        } catch (Exception e) {
+            // Some providers reject queries they do not expect
+        }
+        String fileName = uri.getLastPathSegment();
+        return fileName != null ? fileName : "Photo_" + System.currentTimeMillis();
+    }
+}
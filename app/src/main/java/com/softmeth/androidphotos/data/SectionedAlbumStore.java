@@ -0,0 +1,270 @@
+package com.softmeth.androidphotos.data;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Album store split into a small manifest and one segment per album.
+ *
+ * The manifest (albums.idx) holds each album's name, photo count and the
+ * offset and length of its segment. It is memory-mapped on load, so the
+ * album list is available without touching any photo data. A segment in
+ * albums.&lt;generation&gt;.seg is decoded only when its album's photos are
+ * first used (opened, searched or edited).
+ *
+ * Manifest layout:
+ * <pre>
+ *   int   magic "APHI"
+ *   short version
+ *   long  generation (names the segment file)
+ *   varint albumCount, then per album
+ *     varint nameLength + UTF-8 name, varint photoCount, long offset, int length
+ * </pre>
+ *
+ * Saving writes a new segment file, then atomically replaces the manifest.
+ * Segments of albums that were never loaded are copied byte for byte.
+ */
+public class SectionedAlbumStore {
+    static final String MANIFEST_FILE = "albums.idx";
+    static final String MANIFEST_TEMP_FILE = "albums.idx.tmp";
+    static final int MAGIC = 0x41504849;  // "APHI"
+    static final short VERSION = 1;
+
+    /**
+     * Where one album's photos live in the current segment file.
+     * Offsets move when a save rewrites the file; reads and moves both
+     * happen under the store lock.
+     */
+    static final class Segment implements Album.PhotoLoader {
+        private final SectionedAlbumStore store;
+        private long offset;
+        private final int length;
+
+        Segment(SectionedAlbumStore store, long offset, int length) {
+            this.store = store;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public List<Photo> loadPhotos() {
+            return store.readSegment(this);
+        }
+    }
+
+    private final File dir;
+    private final Object lock = new Object();
+    private long generation;
+    private FileChannel segmentChannel;
+
+    public SectionedAlbumStore(File dir) {
+        this.dir = dir;
+    }
+
+    public boolean exists() {
+        return new File(dir, MANIFEST_FILE).exists();
+    }
+
+    /**
+     * Generation of the snapshot last loaded or saved, 0 if there is none.
+     */
+    public long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * Reads the manifest and returns albums whose photos are not loaded yet.
+     */
+    public List<Album> load() throws IOException {
+        List<Album> albums;
+        long manifestGeneration;
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, MANIFEST_FILE), "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 14 || in.getInt() != MAGIC) {
+                throw new IOException("Not an album manifest");
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported album manifest version " + version);
+            }
+            manifestGeneration = in.getLong();
+            int count = BinaryAlbumFormat.readVarInt(in);
+            albums = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = BinaryAlbumFormat.readString(in);
+                int photoCount = BinaryAlbumFormat.readVarInt(in);
+                long offset = in.getLong();
+                int length = in.getInt();
+                albums.add(new Album(name, photoCount, new Segment(this, offset, length)));
+            }
+        }
+
+        synchronized (lock) {
+            closeSegmentChannel();
+            generation = manifestGeneration;
+            segmentChannel = new RandomAccessFile(segmentFile(generation), "r").getChannel();
+        }
+        deleteStaleSegments();
+        return albums;
+    }
+
+    /**
+     * Writes the albums as a new generation. Called on the writer thread only.
+     */
+    public void save(List<Album> albums) throws IOException {
+        long newGeneration = generation + 1;
+        File newSegments = segmentFile(newGeneration);
+        int count = albums.size();
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        List<Segment> moved = new ArrayList<>();
+        List<Long> movedOffsets = new ArrayList<>();
+
+        try (FileOutputStream fos = new FileOutputStream(newSegments);
+             FileChannel out = fos.getChannel()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (int i = 0; i < count; i++) {
+                Album album = albums.get(i);
+                offsets[i] = out.position();
+                Album.PhotoLoader loader = album.getPhotoLoader();
+                if (loader instanceof Segment && ((Segment) loader).store == this) {
+                    // Never loaded, so the bytes on disk are still current
+                    Segment segment = (Segment) loader;
+                    copySegment(segment, out);
+                    lengths[i] = segment.length;
+                    moved.add(segment);
+                    movedOffsets.add(offsets[i]);
+                } else {
+                    buffer.reset();
+                    DataOutputStream segmentOut = new DataOutputStream(buffer);
+                    BinaryAlbumFormat.writeSegment(segmentOut, album.getPhotos());
+                    segmentOut.flush();
+                    out.write(ByteBuffer.wrap(buffer.toByteArray()));
+                    lengths[i] = buffer.size();
+                }
+            }
+            fos.getFD().sync();
+        } catch (IOException e) {
+            newSegments.delete();
+            throw e;
+        }
+
+        File manifestTemp = new File(dir, MANIFEST_TEMP_FILE);
+        try (FileOutputStream fos = new FileOutputStream(manifestTemp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(newGeneration);
+            BinaryAlbumFormat.writeVarInt(out, count);
+            for (int i = 0; i < count; i++) {
+                Album album = albums.get(i);
+                BinaryAlbumFormat.writeString(out, album.getName());
+                BinaryAlbumFormat.writeVarInt(out, album.getPhotoCount());
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        // The manifest rename is the commit point
+        if (!manifestTemp.renameTo(new File(dir, MANIFEST_FILE))) {
+            newSegments.delete();
+            throw new IOException("Could not replace " + MANIFEST_FILE);
+        }
+
+        synchronized (lock) {
+            for (int i = 0; i < moved.size(); i++) {
+                moved.get(i).offset = movedOffsets.get(i);
+            }
+            closeSegmentChannel();
+            segmentFile(generation).delete();
+            generation = newGeneration;
+            segmentChannel = new RandomAccessFile(newSegments, "r").getChannel();
+        }
+    }
+
+    List<Photo> readSegment(Segment segment) {
+        synchronized (lock) {
+            try {
+                ByteBuffer in = ByteBuffer.allocate(segment.length);
+                long position = segment.offset;
+                while (in.hasRemaining()) {
+                    int n = segmentChannel.read(in, position);
+                    if (n < 0) {
+                        throw new IOException("Album segment is truncated");
+                    }
+                    position += n;
+                }
+                in.flip();
+                return BinaryAlbumFormat.readSegment(in);
+            } catch (IOException e) {
+                // Returning an empty album here would let the next save erase it
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void copySegment(Segment segment, FileChannel out) throws IOException {
+        synchronized (lock) {
+            long position = segment.offset;
+            long remaining = segment.length;
+            while (remaining > 0) {
+                long n = segmentChannel.transferTo(position, remaining, out);
+                if (n <= 0) {
+                    throw new IOException("Album segment is truncated");
+                }
+                position += n;
+                remaining -= n;
+            }
+        }
+    }
+
+    private File segmentFile(long generation) {
+        return new File(dir, "albums." + generation + ".seg");
+    }
+
+    private void closeSegmentChannel() {
+        if (segmentChannel != null) {
+            try {
+                segmentChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            segmentChannel = null;
+        }
+    }
+
+    /**
+     * Removes segment files left behind by a save that crashed before or
+     * after its manifest was replaced.
+     */
+    private void deleteStaleSegments() {
+        String current = segmentFile(generation).getName();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("albums.") && name.endsWith(".seg"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().equals(current)) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.softmeth.androidphotos.images;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes images from content URIs at a reduced size.
+ *
+ * The image header is read first to learn its dimensions, then the image is
+ * decoded with the largest power-of-two {@code inSampleSize} that still
+ * leaves it at least as large as the requested size. A 12 megapixel photo
+ * shown in a 360 pixel grid cell is decoded at roughly 1/8 of its width
+ * and 1/64 of its memory.
+ *
+ * Grid cells crop, so they ask for an image that covers the cell. The
+ * viewer shows the whole photo, so it asks for one that fits inside the
+ * screen; covering a portrait screen with a panorama would decode it many
+ * screens wide.
+ *
+ * When a {@link BitmapPool} is given, the pixels are decoded into a pooled
+ * bitmap where one fits.
+ */
+public final class BitmapDecoder {
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decodes the image so that it covers at least width x height pixels.
+     * Returns null if the image cannot be opened or decoded.
+     */
+    public static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int width, int height,
+                                       BitmapPool pool) throws IOException {
+        return decodeSampled(resolver, uri, width, height, false, pool);
+    }
+
+    /**
+     * Decodes the image so that, scaled to fit inside width x height, it
+     * loses no detail. Returns null if the image cannot be opened or decoded.
+     */
+    public static Bitmap decodeSampledToFit(ContentResolver resolver, Uri uri, int width, int height,
+                                            BitmapPool pool) throws IOException {
+        return decodeSampled(resolver, uri, width, height, true, pool);
+    }
+
+    private static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int width, int height,
+                                        boolean fit, BitmapPool pool) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                return null;
+            }
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = fit
+                ? calculateInSampleSizeToFit(options.outWidth, options.outHeight, width, height)
+                : calculateInSampleSize(options.outWidth, options.outHeight, width, height);
+        reuseFromPool(options, pool);
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                releaseUnused(options, pool);
+                return null;
+            }
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            if (bitmap == null) {
+                releaseUnused(options, pool);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap was rejected; decode into a new one
+            releaseUnused(options, pool);
+            options.inBitmap = null;
+            try (InputStream in = resolver.openInputStream(uri)) {
+                return in != null ? BitmapFactory.decodeStream(in, null, options) : null;
+            }
+        }
+    }
+
+    /**
+     * Decodes a file at its stored size, such as a cached thumbnail.
+     */
+    public static Bitmap decodeFile(String path, BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        reuseFromPool(options, pool);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+            if (bitmap == null) {
+                releaseUnused(options, pool);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            releaseUnused(options, pool);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Decodes one rectangle of a large image, shrunk by the sample size.
+     * A pooled bitmap may be larger than the region; only its top-left
+     * {@link #sampledSize} pixels are meaningful.
+     */
+    public static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, int sampleSize,
+                                      BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        if (pool != null) {
+            options.inBitmap = pool.getForDecode(sampledSize(region.width(), sampleSize),
+                    sampledSize(region.height(), sampleSize), Bitmap.Config.ARGB_8888);
+        }
+        try {
+            Bitmap bitmap = decoder.decodeRegion(region, options);
+            if (bitmap == null) {
+                releaseUnused(options, pool);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            releaseUnused(options, pool);
+            options.inBitmap = null;
+            return decoder.decodeRegion(region, options);
+        }
+    }
+
+    /**
+     * Length of a side after decoding with the sample size, rounded up.
+     */
+    public static int sampledSize(int length, int sampleSize) {
+        return (length + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Scales the bitmap down so it just covers width x height, keeping its
+     * aspect ratio. Returns it unchanged if it is not larger than that.
+     * When a smaller copy is made, the original goes back to the pool.
+     */
+    public static Bitmap scaleToCover(Bitmap bitmap, int width, int height, BitmapPool pool) {
+        return scale(bitmap, Math.max(width / (float) bitmap.getWidth(), height / (float) bitmap.getHeight()), pool);
+    }
+
+    /**
+     * Scales the bitmap down so it just fits inside width x height, keeping
+     * its aspect ratio. Returns it unchanged if it already fits.
+     * When a smaller copy is made, the original goes back to the pool.
+     */
+    public static Bitmap scaleToFit(Bitmap bitmap, int width, int height, BitmapPool pool) {
+        return scale(bitmap, Math.min(width / (float) bitmap.getWidth(), height / (float) bitmap.getHeight()), pool);
+    }
+
+    private static Bitmap scale(Bitmap bitmap, float scale, BitmapPool pool) {
+        if (scale >= 1f) {
+            return bitmap;
+        }
+        int scaledWidth = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int scaledHeight = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = pool.get(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+        new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, scaledWidth, scaledHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(bitmap);
+        return scaled;
+    }
+
+    /**
+     * Largest power of two that keeps both sides at or above the requested
+     * size. Grid cells crop to fill, so neither side may end up smaller.
+     */
+    public static int calculateInSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Largest power of two that keeps the image at or above the size at
+     * which it fits inside the requested box. Only the side that limits
+     * the fit, the one with the larger ratio to the box, has to stay large.
+     */
+    public static int calculateInSampleSizeToFit(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (imageWidth / (sampleSize * 2) >= width || imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Offers a pooled bitmap big enough for the sampled image as
+     * {@code inBitmap}. Sizes are rounded up because decoders round the
+     * sampled dimensions differently.
+     */
+    private static void reuseFromPool(BitmapFactory.Options options, BitmapPool pool) {
+        options.inMutable = true;
+        if (pool == null) {
+            return;
+        }
+        int sample = Math.max(1, options.inSampleSize);
+        options.inBitmap = pool.getForDecode(sampledSize(options.outWidth, sample),
+                sampledSize(options.outHeight, sample), Bitmap.Config.ARGB_8888);
+    }
+
+    private static void releaseUnused(BitmapFactory.Options options, BitmapPool pool) {
+        if (pool != null && options.inBitmap != null) {
+            pool.put(options.inBitmap);
+        }
+    }
+}
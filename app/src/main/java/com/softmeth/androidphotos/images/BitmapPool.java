@@ -0,0 +1,160 @@
+package com.softmeth.androidphotos.images;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Bitmaps that nothing displays any more, kept so the decoder can write the
+ * next thumbnail into one of them ({@code BitmapFactory.Options.inBitmap})
+ * instead of allocating a new one. Flinging through a large album then
+ * reuses a handful of buffers rather than creating garbage for every cell.
+ *
+ * Bitmaps are bucketed by allocation size, rounded up to a power of two.
+ * A request looks in its own bucket first and then in the next larger one,
+ * so it never gets a buffer more than four times bigger than it needs.
+ * When the pool is full the bitmap that has been pooled longest is
+ * recycled.
+ */
+public class BitmapPool {
+    private static final int BUCKETS = 32;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Bitmap>[] buckets = new ArrayDeque[BUCKETS];
+    private final LinkedHashSet<Bitmap> order = new LinkedHashSet<>();  // oldest first
+    private final long maxBytes;
+    private long sizeBytes;
+
+    private int hitCount;
+    private int missCount;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Hands a bitmap over to the pool. The caller must not use it again.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bytes > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        if (!order.add(bitmap)) {
+            return;  // Already pooled
+        }
+        buckets[bucket(bytes)].addLast(bitmap);
+        sizeBytes += bytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Returns a pooled bitmap with room for width x height pixels of the
+     * given config, to pass as {@code inBitmap}. Its contents and
+     * dimensions are undefined. Returns null if none fits.
+     */
+    public synchronized Bitmap getForDecode(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        if (needed <= 0 || needed > Integer.MAX_VALUE) {
+            missCount++;
+            return null;
+        }
+        int first = bucket((int) needed);
+        for (int b = first; b < Math.min(first + 2, BUCKETS); b++) {
+            for (Iterator<Bitmap> it = buckets[b].iterator(); it.hasNext(); ) {
+                Bitmap bitmap = it.next();
+                if (bitmap.getAllocationByteCount() >= needed) {
+                    it.remove();
+                    order.remove(bitmap);
+                    sizeBytes -= bitmap.getAllocationByteCount();
+                    hitCount++;
+                    return bitmap;
+                }
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Returns a cleared width x height bitmap, reusing a pooled buffer if
+     * one is big enough.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getForDecode(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimToSize(maxBytes / 2);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Share of requests served from the pool, between 0 and 1.
+     */
+    public synchronized float getHitRate() {
+        int total = hitCount + missCount;
+        return total == 0 ? 0f : hitCount / (float) total;
+    }
+
+    private void trimToSize(long limit) {
+        Iterator<Bitmap> it = order.iterator();
+        while (sizeBytes > limit && it.hasNext()) {
+            Bitmap eldest = it.next();
+            it.remove();
+            int bytes = eldest.getAllocationByteCount();
+            buckets[bucket(bytes)].remove(eldest);
+            sizeBytes -= bytes;
+            eldest.recycle();
+        }
+    }
+
+    /**
+     * Index of the smallest power of two at or above the byte count.
+     */
+    static int bucket(int bytes) {
+        return bytes <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(bytes - 1);
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+}
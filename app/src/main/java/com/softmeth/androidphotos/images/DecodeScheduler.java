@@ -0,0 +1,313 @@
+package com.softmeth.androidphotos.images;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The one place image decodes run. Every caller (grid cells, the photo
+ * viewer, prefetching) queues work here with a {@link Priority}, and a
+ * small pool of threads sized to the CPU runs it highest priority first.
+ *
+ * Work is keyed, usually by URI and size. A second request for a key that
+ * is already queued or decoding joins the existing job instead of decoding
+ * again, and raises its priority if it needs it sooner.
+ *
+ * Background work ({@link Priority#PREFETCH} and {@link Priority#WARM_UP})
+ * may use every thread but one, so something that appears on screen never
+ * waits for a full pool of speculative decodes.
+ */
+public class DecodeScheduler {
+
+    public enum Priority {
+        VISIBLE,     // On screen now
+        NEXT_PHOTO,  // One swipe away in the photo viewer
+        PREFETCH,    // About to scroll into view
+        WARM_UP;     // Nobody is waiting for it
+
+        boolean isBackground() {
+            return compareTo(PREFETCH) >= 0;
+        }
+    }
+
+    /**
+     * The decode itself. Runs once per job on a scheduler thread.
+     */
+    public interface Task {
+        /**
+         * @return the image, or null if it could not be decoded
+         */
+        Bitmap run() throws Exception;
+
+        /**
+         * Called after every listener of the job has been called.
+         */
+        default void finished(Bitmap result) {
+        }
+    }
+
+    /**
+     * Receives the job's result on the scheduler thread, once for each
+     * ticket still active when the decode finishes.
+     */
+    public interface Listener {
+        void onDecoded(Bitmap bitmap);
+    }
+
+    /**
+     * One caller's interest in a job.
+     */
+    public final class Ticket {
+        private final Job job;
+        private final Priority priority;
+        private final Listener listener;
+        private volatile boolean cancelled;
+
+        Ticket(Job job, Priority priority, Listener listener) {
+            this.job = job;
+            this.priority = priority;
+            this.listener = listener;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Withdraws this ticket. The job is dropped if nobody else is
+         * waiting for it and it has not started yet.
+         */
+        public void cancel() {
+            DecodeScheduler.this.cancel(this);
+        }
+    }
+
+    private static final class Job implements Comparable<Job> {
+        final String key;
+        final Task task;
+        final List<Ticket> tickets = new ArrayList<>();
+        Priority priority;
+        final long sequence;
+        boolean started;
+        boolean background;
+
+        Job(String key, Task task, Priority priority, long sequence) {
+            this.key = key;
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Object lock = new Object();
+    private final PriorityQueue<Job> queue = new PriorityQueue<>();
+    private final Map<String, Job> jobs = new HashMap<>();  // queued or running
+    private final int threadCount;
+    private int runningBackground;
+    private long nextSequence;
+
+    private int submittedCount;
+    private int joinedCount;
+    private int cancelledCount;
+    private int completedCount;
+
+    public DecodeScheduler() {
+        this(defaultThreadCount());
+    }
+
+    DecodeScheduler(int threadCount) {
+        this.threadCount = Math.max(2, threadCount);
+        for (int i = 0; i < this.threadCount; i++) {
+            Thread thread = new Thread(this::work, "image-decoder-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * One thread per core, leaving one for the UI, between 2 and 4.
+     */
+    static int defaultThreadCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(2, Math.min(4, cores - 1));
+    }
+
+    /**
+     * Queues the task under the key, or joins the job already queued or
+     * running under it.
+     */
+    public Ticket submit(String key, Priority priority, Task task, Listener listener) {
+        synchronized (lock) {
+            submittedCount++;
+            Job job = jobs.get(key);
+            if (job == null) {
+                job = new Job(key, task, priority, nextSequence++);
+                jobs.put(key, job);
+                queue.add(job);
+                lock.notifyAll();
+            } else {
+                joinedCount++;
+                if (!job.started && priority.compareTo(job.priority) < 0) {
+                    requeueLocked(job, priority);
+                }
+            }
+            Ticket ticket = new Ticket(job, priority, listener);
+            job.tickets.add(ticket);
+            return ticket;
+        }
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Jobs waiting for a thread.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    public int getSubmittedCount() {
+        synchronized (lock) {
+            return submittedCount;
+        }
+    }
+
+    /**
+     * Requests that joined a job already queued or running for the same key.
+     */
+    public int getJoinedCount() {
+        synchronized (lock) {
+            return joinedCount;
+        }
+    }
+
+    /**
+     * Jobs dropped before they started because every ticket was cancelled.
+     */
+    public int getCancelledCount() {
+        synchronized (lock) {
+            return cancelledCount;
+        }
+    }
+
+    public int getCompletedCount() {
+        synchronized (lock) {
+            return completedCount;
+        }
+    }
+
+    private void cancel(Ticket ticket) {
+        synchronized (lock) {
+            if (ticket.cancelled) {
+                return;
+            }
+            ticket.cancelled = true;
+            Job job = ticket.job;
+            job.tickets.remove(ticket);
+            if (job.started) {
+                return;
+            }
+            if (job.tickets.isEmpty()) {
+                queue.remove(job);
+                jobs.remove(job.key);
+                cancelledCount++;
+                return;
+            }
+            // The most urgent remaining ticket decides where the job waits
+            Priority highest = Priority.WARM_UP;
+            for (Ticket t : job.tickets) {
+                if (t.priority.compareTo(highest) < 0) {
+                    highest = t.priority;
+                }
+            }
+            if (highest != job.priority) {
+                requeueLocked(job, highest);
+            }
+        }
+    }
+
+    private void requeueLocked(Job job, Priority priority) {
+        queue.remove(job);
+        job.priority = priority;
+        queue.add(job);
+        lock.notifyAll();
+    }
+
+    /**
+     * Takes the most urgent job, or null if there is none this thread may
+     * run. Background jobs leave one thread free for foreground work.
+     */
+    private Job nextJobLocked() {
+        Job head = queue.peek();
+        if (head == null) {
+            return null;
+        }
+        if (head.priority.isBackground() && runningBackground >= threadCount - 1) {
+            return null;
+        }
+        return queue.poll();
+    }
+
+    private void work() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Job job;
+            synchronized (lock) {
+                while ((job = nextJobLocked()) == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                job.started = true;
+                job.background = job.priority.isBackground();
+                if (job.background) {
+                    runningBackground++;
+                }
+            }
+
+            Bitmap result = null;
+            try {
+                result = job.task.run();
+            } catch (Exception e) {
+                // Missing files, revoked permissions and corrupt images all end up here
+                e.printStackTrace();
+            } catch (OutOfMemoryError e) {
+                result = null;
+            }
+
+            List<Ticket> tickets;
+            synchronized (lock) {
+                jobs.remove(job.key);
+                if (job.background) {
+                    runningBackground--;
+                }
+                completedCount++;
+                tickets = new ArrayList<>(job.tickets);
+                lock.notifyAll();
+            }
+            for (Ticket ticket : tickets) {
+                ticket.listener.onDecoded(result);
+            }
+            job.task.finished(result);
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.softmeth.androidphotos.images;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Second-level thumbnail cache: small pre-scaled JPEGs in the app's cache
+ * directory, so the first screen after a cold start does not have to decode
+ * the original images again.
+ *
+ * Each thumbnail is stored under a hash of its URI and size together with
+ * the size and modification time of the original. An entry whose original
+ * has changed is thrown away instead of being shown. When the provider does
+ * not report both values, a change cannot be noticed, so such an entry is
+ * only trusted for {@link #UNVERIFIED_MAX_AGE_MS} after it was written.
+ *
+ * Use order is kept in a text journal that is only ever appended to:
+ * <pre>
+ *   thumbnails 1
+ *   PUT &lt;key&gt; &lt;bytes&gt; &lt;sourceSize&gt; &lt;sourceModified&gt;
+ *   READ &lt;key&gt;
+ *   REMOVE &lt;key&gt;
+ * </pre>
+ * Replaying it rebuilds the LRU order. Once the cache is over
+ * {@link #DEFAULT_MAX_BYTES} the least recently used files are deleted. The
+ * journal is rewritten from memory when most of its lines are redundant.
+ *
+ * All methods may be called from any decode thread. Files are read and
+ * written outside the lock; only the bookkeeping is serialized.
+ */
+public class DiskThumbnailCache {
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_TEMP_FILE = "journal.tmp";
+    static final String HEADER = "thumbnails 1";
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    static final int JPEG_QUALITY = 85;
+    static final int COMPACT_THRESHOLD_OPS = 2000;
+    static final long UNVERIFIED_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Size and modification time of an original image, used to notice that
+     * a cached thumbnail is out of date. Unknown values are -1.
+     */
+    public static final class Stamp {
+        static final Stamp UNKNOWN = new Stamp(-1, -1);
+
+        final long size;
+        final long lastModified;
+
+        Stamp(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Looks the values up from the provider, or from the file system for
+         * file:// URIs.
+         */
+        public static Stamp of(ContentResolver resolver, Uri uri) {
+            if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+                File file = new File(uri.getPath());
+                return new Stamp(file.length(), file.lastModified());
+            }
+            try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+                if (cursor == null || !cursor.moveToFirst()) {
+                    return UNKNOWN;
+                }
+                long size = getLong(cursor, OpenableColumns.SIZE);
+                long modified = getLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (modified < 0) {
+                    // MediaStore reports seconds rather than milliseconds
+                    long seconds = getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+                    modified = seconds < 0 ? -1 : seconds * 1000;
+                }
+                return new Stamp(size, modified);
+            } catch (Exception e) {
+                // Some providers reject queries they do not expect
+                return UNKNOWN;
+            }
+        }
+
+        private static long getLong(Cursor cursor, String column) {
+            int index = cursor.getColumnIndex(column);
+            return index < 0 || cursor.isNull(index) ? -1 : cursor.getLong(index);
+        }
+
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        /**
+         * Whether both values are known, so that matching them proves the
+         * original has not changed.
+         */
+        boolean isComplete() {
+            return size >= 0 && lastModified >= 0;
+        }
+    }
+
+    private static final class Entry {
+        final long bytes;
+        final long sourceSize;
+        final long sourceModified;
+
+        Entry(long bytes, long sourceSize, long sourceModified) {
+            this.bytes = bytes;
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private Writer journal;
+    private int redundantOps;
+    private boolean opened;
+
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public DiskThumbnailCache(File dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    DiskThumbnailCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached thumbnail, decoded into a pooled bitmap if one
+     * fits, or null if there is none or the original has changed since it
+     * was stored.
+     */
+    public Bitmap get(Uri uri, int width, int height, Stamp stamp, BitmapPool pool) {
+        String key = hashKey(ThumbnailCache.key(uri, width, height));
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return null;
+            }
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+            if (!stamp.matches(entry.sourceSize, entry.sourceModified)
+                    || (!stamp.isComplete() && isExpired(key))) {
+                removeLocked(key);
+                missCount++;
+                return null;
+            }
+            appendLocked("READ " + key);
+        }
+
+        Bitmap bitmap = BitmapDecoder.decodeFile(file(key).getPath(), pool);
+        synchronized (this) {
+            if (bitmap == null) {
+                // Deleted behind our back or cut short by a crash
+                removeLocked(key);
+                missCount++;
+            } else {
+                hitCount++;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores the thumbnail, replacing any older one for the same URI and size.
+     */
+    public void put(Uri uri, int width, int height, Stamp stamp, Bitmap bitmap) {
+        String key = hashKey(ThumbnailCache.key(uri, width, height));
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return;
+            }
+        }
+        File temp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("Could not encode thumbnail");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!temp.renameTo(file(key))) {
+                temp.delete();
+                return;
+            }
+            Entry entry = new Entry(file(key).length(), stamp.size, stamp.lastModified);
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                totalBytes -= previous.bytes;
+                redundantOps++;
+            }
+            totalBytes += entry.bytes;
+            appendLocked("PUT " + key + ' ' + entry.bytes + ' ' + entry.sourceSize + ' ' + entry.sourceModified);
+            trimLocked();
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    private File file(String key) {
+        return new File(dir, key + ".jpg");
+    }
+
+    /**
+     * Whether the thumbnail file is older than {@link #UNVERIFIED_MAX_AGE_MS}.
+     * The file's own modification time is when it was stored.
+     */
+    private boolean isExpired(String key) {
+        return System.currentTimeMillis() - file(key).lastModified() > UNVERIFIED_MAX_AGE_MS;
+    }
+
+    /**
+     * Reads the journal the first time the cache is used, on a decode
+     * thread rather than during startup. Returns false if the cache
+     * directory is unusable, in which case the cache stays empty.
+     */
+    private boolean ensureOpen() {
+        if (opened) {
+            return journal != null;
+        }
+        opened = true;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return false;
+        }
+        try {
+            boolean valid = readJournal();
+            deleteUntrackedFiles();
+            if (!valid || redundantOps >= COMPACT_THRESHOLD_OPS) {
+                rebuildJournal();
+            } else {
+                journal = openJournalWriter();
+            }
+            trimLocked();
+        } catch (IOException e) {
+            e.printStackTrace();
+            journal = null;
+        }
+        return journal != null;
+    }
+
+    /**
+     * Replays the journal into {@link #entries}. Returns false if the
+     * journal is missing or ends in a torn line and must be rewritten.
+     */
+    private boolean readJournal() throws IOException {
+        File journalFile = new File(dir, JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return false;
+        }
+        boolean complete = true;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(in.readLine())) {
+                return false;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 5 && parts[0].equals("PUT")) {
+                    try {
+                        Entry entry = new Entry(Long.parseLong(parts[2]),
+                                Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+                        if (entries.put(parts[1], entry) != null) {
+                            redundantOps++;
+                        }
+                    } catch (NumberFormatException e) {
+                        complete = false;
+                        break;
+                    }
+                } else if (parts.length == 2 && parts[0].equals("READ")) {
+                    entries.get(parts[1]);
+                    redundantOps++;
+                } else if (parts.length == 2 && parts[0].equals("REMOVE")) {
+                    entries.remove(parts[1]);
+                    redundantOps++;
+                } else {
+                    // Torn last line; appending after it would hide new lines
+                    complete = false;
+                    break;
+                }
+            }
+        }
+
+        totalBytes = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> e = it.next();
+            if (file(e.getKey()).length() != e.getValue().bytes) {
+                it.remove();
+                redundantOps++;
+            } else {
+                totalBytes += e.getValue().bytes;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Deletes thumbnails the journal does not know about, such as files
+     * written just before a crash and leftover temp files.
+     */
+    private void deleteUntrackedFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE)) {
+                continue;
+            }
+            if (!name.endsWith(".jpg") || !entries.containsKey(name.substring(0, name.length() - 4))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one PUT line per entry, least recently
+     * used first.
+     */
+    private void rebuildJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        File temp = new File(dir, JOURNAL_TEMP_FILE);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write("PUT " + e.getKey() + ' ' + entry.bytes + ' ' + entry.sourceSize + ' ' + entry.sourceModified);
+                out.write('\n');
+            }
+        }
+        if (!temp.renameTo(new File(dir, JOURNAL_FILE))) {
+            throw new IOException("Could not replace thumbnail journal");
+        }
+        redundantOps = 0;
+        journal = openJournalWriter();
+    }
+
+    private Writer openJournalWriter() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, JOURNAL_FILE), true), StandardCharsets.UTF_8));
+    }
+
+    private void appendLocked(String line) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(line);
+            journal.write('\n');
+            // A lost line only costs LRU order or an orphan file, so no sync
+            journal.flush();
+            if (!line.startsWith("PUT") && ++redundantOps >= COMPACT_THRESHOLD_OPS
+                    && redundantOps >= entries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void removeLocked(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.bytes;
+            file(key).delete();
+            appendLocked("REMOVE " + key);
+        }
+    }
+
+    private void trimLocked() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue().bytes;
+            file(eldest.getKey()).delete();
+            evictionCount++;
+            appendLocked("REMOVE " + eldest.getKey());
+        }
+    }
+
+    static String hashKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every Android release has SHA-1
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.softmeth.androidphotos.images;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Fingerprints for spotting the same picture under different URIs.
+ *
+ * The content hash identifies identical files: the first 64 bits of the
+ * SHA-256 of the bytes, read in chunks so large files are never held in
+ * memory. The difference hash (dHash) identifies the same picture after
+ * re-encoding or resizing: the image is shrunk to 9 x 8 grey pixels and
+ * each bit says whether a pixel is brighter than its right neighbour.
+ * Similar pictures differ in only a few bits; see {@link #distance}.
+ */
+public final class ImageHashes {
+    static final int HASH_WIDTH = 9;
+    static final int HASH_HEIGHT = 8;
+    static final int DECODE_SIZE = 64;  // Decode just large enough to shrink cleanly
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ImageHashes() {
+    }
+
+    public static long contentHash(ContentResolver resolver, Uri uri) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every Android version has SHA-256
+        }
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        byte[] sha = digest.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (sha[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * @throws IOException if the image cannot be opened or decoded
+     */
+    public static long differenceHash(ContentResolver resolver, Uri uri) throws IOException {
+        Bitmap decoded = BitmapDecoder.decodeSampled(resolver, uri, DECODE_SIZE, DECODE_SIZE, null);
+        if (decoded == null) {
+            throw new IOException("Could not decode " + uri);
+        }
+        long hash = differenceHash(decoded);
+        decoded.recycle();
+        return hash;
+    }
+
+    /**
+     * dHash of an image that is already decoded, e.g. a thumbnail. The
+     * bitmap is only read.
+     */
+    public static long differenceHash(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, HASH_WIDTH, HASH_HEIGHT, true);
+        int[] pixels = new int[HASH_WIDTH * HASH_HEIGHT];
+        small.getPixels(pixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT);
+        if (small != bitmap) {
+            small.recycle();
+        }
+        return differenceHash(pixels);
+    }
+
+    /**
+     * dHash of 9 x 8 ARGB pixels, row by row.
+     */
+    static long differenceHash(int[] pixels) {
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            int row = y * HASH_WIDTH;
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luminance(pixels[row + x]) > luminance(pixels[row + x + 1])) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Number of bits in which two difference hashes disagree.
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static int luminance(int argb) {
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        return r * 299 + g * 587 + b * 114;
+    }
+}
@@ -0,0 +1,202 @@
+package com.softmeth.androidphotos.images;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.widget.ImageView;
+
+import com.softmeth.androidphotos.models.Photo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Screen-sized images for the photo being viewed and its neighbours, so
+ * paging through an album swaps in a bitmap that is already decoded.
+ *
+ * The window covers the current photo and up to {@code radius} photos on
+ * each side. The current photo is decoded first, then the neighbours
+ * nearest first. Moving the window cancels or releases whatever fell out
+ * of it.
+ *
+ * The view keeps showing the previous image until the new one is ready,
+ * rather than going blank, and a bitmap is never released while it is
+ * still on screen.
+ */
+public class PhotoWindow {
+    static final int SMALL_HEAP_RADIUS = 1;
+    static final int LARGE_HEAP_RADIUS = 2;
+    static final int LARGE_HEAP_MB = 256;
+
+    /**
+     * Told when the view starts showing a different photo.
+     */
+    public interface OnDisplayListener {
+        void onDisplayed(Uri uri);
+    }
+
+    private static final class Slot {
+        ThumbnailLoader.Request request;
+        DecodeScheduler.Priority priority;
+        Bitmap bitmap;
+        boolean finished;
+    }
+
+    private final ThumbnailLoader loader;
+    private final ImageView imageView;
+    private final int width;
+    private final int height;
+    private final int radius;
+    private final Map<Uri, Slot> slots = new HashMap<>();
+    private final Set<Bitmap> releaseWhenHidden = new HashSet<>();
+    private Uri currentUri;
+    private Bitmap displayed;
+    private OnDisplayListener displayListener;
+
+    public PhotoWindow(ThumbnailLoader loader, ImageView imageView, int width, int height, int radius) {
+        this.loader = loader;
+        this.imageView = imageView;
+        this.width = width;
+        this.height = height;
+        this.radius = radius;
+    }
+
+    /**
+     * Each screen-sized bitmap costs megabytes, so only keep two
+     * neighbours per side on devices with a large heap.
+     */
+    public static int defaultRadius(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = am != null ? am.getMemoryClass() : 0;
+        return memoryClassMb >= LARGE_HEAP_MB ? LARGE_HEAP_RADIUS : SMALL_HEAP_RADIUS;
+    }
+
+    public void setOnDisplayListener(OnDisplayListener listener) {
+        this.displayListener = listener;
+    }
+
+    /**
+     * Shows the photo at the position and slides the window around it.
+     */
+    public void moveTo(List<Photo> photos, int position) {
+        List<Uri> wanted = new ArrayList<>(2 * radius + 1);
+        wanted.add(photos.get(position).getUri());
+        for (int d = 1; d <= radius; d++) {
+            if (position + d < photos.size()) {
+                wanted.add(photos.get(position + d).getUri());
+            }
+            if (position - d >= 0) {
+                wanted.add(photos.get(position - d).getUri());
+            }
+        }
+        currentUri = wanted.get(0);
+
+        for (Iterator<Map.Entry<Uri, Slot>> it = slots.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Uri, Slot> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                releaseSlot(entry.getValue());
+                it.remove();
+            }
+        }
+
+        for (Uri uri : wanted) {
+            DecodeScheduler.Priority priority = uri.equals(currentUri)
+                    ? DecodeScheduler.Priority.VISIBLE : DecodeScheduler.Priority.NEXT_PHOTO;
+            Slot slot = slots.get(uri);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(uri, slot);
+                request(uri, slot, priority);
+            } else if (!slot.finished && priority.compareTo(slot.priority) < 0) {
+                // A neighbour became the current photo before it finished;
+                // the new request joins the same decode and moves it up
+                ThumbnailLoader.Request old = slot.request;
+                request(uri, slot, priority);
+                old.cancel();
+            }
+        }
+
+        Slot current = slots.get(currentUri);
+        if (current.finished) {
+            display(currentUri, current);
+        }
+    }
+
+    /**
+     * Releases every bitmap. Call when the viewer goes away.
+     */
+    public void clear() {
+        imageView.setImageDrawable(null);
+        currentUri = null;
+        displayed = null;
+        for (Slot slot : slots.values()) {
+            releaseSlot(slot);
+        }
+        slots.clear();
+        for (Bitmap bitmap : releaseWhenHidden) {
+            loader.release(bitmap);
+        }
+        releaseWhenHidden.clear();
+    }
+
+    private void request(Uri uri, Slot slot, DecodeScheduler.Priority priority) {
+        slot.priority = priority;
+        ThumbnailLoader.Request request = loader.loadScreenImage(uri, width, height, priority, bitmap -> {
+            if (slots.get(uri) != slot) {
+                // Slid out of the window and came back as a new slot
+                if (bitmap != null) {
+                    loader.release(bitmap);
+                }
+                return;
+            }
+            slot.bitmap = bitmap;
+            slot.finished = true;
+            if (uri.equals(currentUri)) {
+                display(uri, slot);
+            }
+        });
+        if (!slot.finished) {
+            // Not delivered straight from the memory cache
+            slot.request = request;
+        }
+    }
+
+    private void display(Uri uri, Slot slot) {
+        if (slot.bitmap != null && slot.bitmap == displayed) {
+            return;
+        }
+        Bitmap previous = displayed;
+        if (slot.bitmap != null) {
+            imageView.setImageBitmap(slot.bitmap);
+        } else {
+            imageView.setImageResource(android.R.drawable.ic_menu_gallery);
+        }
+        displayed = slot.bitmap;
+        if (previous != null && releaseWhenHidden.remove(previous)) {
+            loader.release(previous);
+        }
+        if (displayListener != null) {
+            displayListener.onDisplayed(uri);
+        }
+    }
+
+    private void releaseSlot(Slot slot) {
+        if (slot.request != null && !slot.finished) {
+            slot.request.cancel();
+        }
+        if (slot.bitmap != null) {
+            if (slot.bitmap == displayed) {
+                releaseWhenHidden.add(slot.bitmap);  // Still on screen
+            } else {
+                loader.release(slot.bitmap);
+            }
+            slot.bitmap = null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.softmeth.androidphotos.images;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory cache of decoded thumbnails shared by every screen, so going back
+ * to an album shows its grid without decoding anything again.
+ *
+ * Entries are keyed by URI and decoded size and counted by their size in
+ * bytes. The cache gets {@link #MEMORY_CLASS_FRACTION} of the app's heap
+ * limit and gives memory back when the system asks through
+ * {@link #trimMemory(int)}.
+ */
+public class ThumbnailCache {
+    static final int MEMORY_CLASS_FRACTION = 8;  // 1/8 of the heap limit
+
+    /**
+     * Told about every bitmap that leaves the cache, whether evicted,
+     * replaced or trimmed. Runs on the thread that caused the removal.
+     */
+    public interface OnRemovedListener {
+        void onThumbnailRemoved(Bitmap bitmap);
+    }
+
+    private final LruCache<String, Bitmap> cache;
+    // Keys in the cache, so contains() can answer without touching the LRU order
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+    public ThumbnailCache(Context context, OnRemovedListener listener) {
+        this(defaultSizeBytes(context), listener);
+    }
+
+    ThumbnailCache(int maxBytes, OnRemovedListener listener) {
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (newValue == null) {
+                    keys.remove(key);
+                }
+                if (listener != null && oldValue != newValue) {
+                    listener.onThumbnailRemoved(oldValue);
+                }
+            }
+        };
+    }
+
+    static int defaultSizeBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = am != null ? am.getMemoryClass() : 32;
+        return memoryClassMb * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+    }
+
+    static String key(Uri uri, int width, int height) {
+        return uri.toString() + '@' + width + 'x' + height;
+    }
+
+    public Bitmap get(Uri uri, int width, int height) {
+        return cache.get(key(uri, width, height));
+    }
+
+    /**
+     * Whether the thumbnail is cached, without counting a hit or miss or
+     * making it the most recently used. Only a hint: it can be briefly
+     * wrong while another thread puts or evicts the same entry.
+     */
+    public boolean contains(Uri uri, int width, int height) {
+        return keys.contains(key(uri, width, height));
+    }
+
+    public void put(Uri uri, int width, int height, Bitmap bitmap) {
+        String key = key(uri, width, height);
+        // Before the put, so an entry evicted straight away is not left behind
+        keys.add(key);
+        cache.put(key, bitmap);
+    }
+
+    /**
+     * Drops part or all of the cache depending on how badly the system
+     * needs memory. The size limit stays, so the cache refills as it is used.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Next in line to be killed; nothing on screen needs these
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            cache.trimToSize(cache.maxSize() / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            cache.trimToSize(cache.maxSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+
+    public int getSizeBytes() {
+        return cache.size();
+    }
+
+    public int getMaxSizeBytes() {
+        return cache.maxSize();
+    }
+
+    public int getHitCount() {
+        return cache.hitCount();
+    }
+
+    public int getMissCount() {
+        return cache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return cache.evictionCount();
+    }
+}
@@ -0,0 +1,418 @@
+package com.softmeth.androidphotos.images;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+
+import java.io.File;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * Loads sampled images (grid thumbnails and the photo viewer's screen-sized
+ * image) through the shared {@link DecodeScheduler} and hands them back on
+ * the main thread.
+ *
+ * Decoded thumbnails are kept in a {@link ThumbnailCache}; a cached one is
+ * delivered straight away without going through the decode threads.
+ * Behind it, a {@link DiskThumbnailCache} keeps scaled copies across
+ * restarts, so the original image is only decoded once.
+ *
+ * Screen-sized images for the viewer go through {@link #loadScreenImage}
+ * instead. They are megabytes each, so they get a separate cache of
+ * {@link #SCREEN_CACHE_IMAGES} screens and never go to disk, where they
+ * would push out hundreds of thumbnails.
+ *
+ * Each load returns a {@link Request}. Cancelling it (e.g. when a grid cell
+ * is recycled) skips the decode if it has not started yet and always stops
+ * the result from being delivered.
+ *
+ * Requests carry a {@link DecodeScheduler.Priority}; requests for the same
+ * URI and size share one decode.
+ *
+ * Bitmaps are reused through a {@link BitmapPool}. A thumbnail goes back to
+ * the pool once it has left the memory cache and every cell showing it has
+ * called {@link #release(Bitmap)}, so nothing on screen is ever overwritten.
+ */
+public class ThumbnailLoader {
+    static final int SCREEN_CACHE_IMAGES = 3;
+
+    /**
+     * Receives the decoded thumbnail on the main thread.
+     */
+    public interface Callback {
+        /**
+         * The receiver now holds a reference to the bitmap and must pass it
+         * to {@link #release(Bitmap)} once it stops showing it.
+         *
+         * @param bitmap the thumbnail, or null if the image could not be decoded
+         */
+        void onThumbnailLoaded(Bitmap bitmap);
+    }
+
+    /**
+     * Who still needs a bitmap before it may be pooled.
+     */
+    private static final class Usage {
+        int references;
+        boolean cached;
+    }
+
+    /**
+     * A pending load.
+     */
+    public static class Request {
+        private final Uri uri;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private DecodeScheduler.Ticket ticket;
+
+        Request(Uri uri) {
+            this.uri = uri;
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * True once the image is decoded (or failed) and, unless the
+         * request was cancelled, delivered.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Must be called on the main thread so it cannot race the delivery.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (ticket != null) {
+                ticket.cancel();
+            }
+        }
+    }
+
+    private static ThumbnailLoader instance;
+
+    private final ContentResolver resolver;
+    private final ThumbnailCache memoryCache;
+    private final ThumbnailCache screenCache;
+    private final DiskThumbnailCache diskCache;
+    private final BitmapPool bitmapPool;
+    // Weak keys so cells of a destroyed screen that never released do not leak;
+    // Bitmap keeps identity equality. Guarded by itself.
+    private final Map<Bitmap, Usage> usage = new WeakHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final DecodeScheduler scheduler = new DecodeScheduler();
+
+    private ThumbnailLoader(Context context) {
+        this.resolver = context.getContentResolver();
+        this.memoryCache = new ThumbnailCache(context, this::onRemovedFromCache);
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        this.screenCache = new ThumbnailCache(
+                SCREEN_CACHE_IMAGES * metrics.widthPixels * metrics.heightPixels * 4, this::onRemovedFromCache);
+        this.bitmapPool = new BitmapPool(memoryCache.getMaxSizeBytes() / 4);
+        this.diskCache = new DiskThumbnailCache(new File(context.getCacheDir(), "thumbnails"));
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                memoryCache.trimMemory(level);
+                screenCache.trimMemory(level);
+                bitmapPool.trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                memoryCache.clear();
+                screenCache.clear();
+                bitmapPool.clear();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public ThumbnailCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    public DiskThumbnailCache getDiskCache() {
+        return diskCache;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public DecodeScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Starts decoding the image at about width x height pixels for a cell
+     * on screen. Call on the main thread; the callback also runs there,
+     * immediately if the image is already cached.
+     */
+    public Request load(Uri uri, int width, int height, Callback callback) {
+        return load(uri, width, height, DecodeScheduler.Priority.VISIBLE, callback);
+    }
+
+    public Request load(Uri uri, int width, int height, DecodeScheduler.Priority priority, Callback callback) {
+        return load(memoryCache, ThumbnailCache.key(uri, width, height), uri, width, height, priority,
+                decodeTask(memoryCache, uri, width, height, false), callback);
+    }
+
+    /**
+     * Like {@link #load}, for an image the size of the screen. The whole
+     * image fits inside width x height. Kept in the screen cache only.
+     */
+    public Request loadScreenImage(Uri uri, int width, int height, DecodeScheduler.Priority priority,
+                                   Callback callback) {
+        return load(screenCache, "screen:" + ThumbnailCache.key(uri, width, height), uri, width, height,
+                priority, decodeTask(screenCache, uri, width, height, true), callback);
+    }
+
+    private Request load(ThumbnailCache cache, String key, Uri uri, int width, int height,
+                         DecodeScheduler.Priority priority, DecodeScheduler.Task task, Callback callback) {
+        Request request = new Request(uri);
+        Bitmap cached;
+        synchronized (usage) {
+            // Taking the reference under the lock stops an eviction on a
+            // decode thread from pooling the bitmap in between
+            cached = cache.get(uri, width, height);
+            if (cached != null) {
+                usageOf(cached).references++;
+            }
+        }
+        if (cached != null) {
+            request.done = true;
+            callback.onThumbnailLoaded(cached);
+            return request;
+        }
+        request.ticket = scheduler.submit(key, priority, task, bitmap -> {
+                    if (bitmap != null) {
+                        synchronized (usage) {
+                            usageOf(bitmap).references++;  // Held for the callback
+                        }
+                    }
+                    mainHandler.post(() -> {
+                        request.done = true;
+                        if (!request.cancelled) {
+                            callback.onThumbnailLoaded(bitmap);
+                        } else if (bitmap != null) {
+                            release(bitmap);
+                        }
+                    });
+                });
+        return request;
+    }
+
+    /**
+     * Decodes the image into the memory cache ahead of time, behind every
+     * visible cell. Returns null if it is cached already.
+     */
+    public Request prefetch(Uri uri, int width, int height) {
+        return prefetch(uri, width, height, DecodeScheduler.Priority.PREFETCH);
+    }
+
+    public Request prefetch(Uri uri, int width, int height, DecodeScheduler.Priority priority) {
+        if (memoryCache.contains(uri, width, height)) {
+            return null;
+        }
+        Request request = new Request(uri);
+        request.ticket = scheduler.submit(ThumbnailCache.key(uri, width, height), priority,
+                decodeTask(memoryCache, uri, width, height, false), bitmap -> request.done = true);
+        return request;
+    }
+
+    /**
+     * Writes the thumbnail to the disk cache ahead of time, e.g. while
+     * importing, without filling the memory cache. Runs as
+     * {@link DecodeScheduler.Priority#WARM_UP} work behind everything on
+     * screen and blocks until it is done, so call it off the main thread.
+     *
+     * @param inspect if not null, given the thumbnail on the decode thread
+     *                before it goes back to the pool; must not keep it
+     * @return false if the image could not be decoded
+     */
+    public boolean pregenerate(Uri uri, int width, int height, Consumer<Bitmap> inspect)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] decoded = new boolean[1];
+        // Its own key: a visible load joining this job would be handed a
+        // bitmap that goes straight back to the pool
+        DecodeScheduler.Ticket ticket = scheduler.submit("warm:" + ThumbnailCache.key(uri, width, height),
+                DecodeScheduler.Priority.WARM_UP, new DecodeScheduler.Task() {
+                    @Override
+                    public Bitmap run() {
+                        return decode(uri, width, height);
+                    }
+
+                    @Override
+                    public void finished(Bitmap bitmap) {
+                        bitmapPool.put(bitmap);
+                    }
+                }, bitmap -> {
+                    decoded[0] = bitmap != null;
+                    try {
+                        if (bitmap != null && inspect != null) {
+                            inspect.accept(bitmap);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            ticket.cancel();
+            throw e;
+        }
+        return decoded[0];
+    }
+
+    /**
+     * Decodes into the given cache. The job holds its own reference until
+     * every listener has taken one, so an eviction in between cannot pool
+     * a bitmap that is about to be shown.
+     */
+    private DecodeScheduler.Task decodeTask(ThumbnailCache cache, Uri uri, int width, int height,
+                                            boolean screen) {
+        return new DecodeScheduler.Task() {
+            @Override
+            public Bitmap run() {
+                synchronized (usage) {
+                    // As in load(), an eviction must not pool the bitmap
+                    // between finding it and taking the reference
+                    Bitmap cached = cache.get(uri, width, height);
+                    if (cached != null) {
+                        usageOf(cached).references++;
+                        return cached;
+                    }
+                }
+                Bitmap bitmap = screen ? decodeScreen(uri, width, height) : decode(uri, width, height);
+                if (bitmap == null) {
+                    return null;
+                }
+                synchronized (usage) {
+                    Usage u = usageOf(bitmap);
+                    u.cached = true;
+                    u.references++;
+                    cache.put(uri, width, height, bitmap);
+                }
+                return bitmap;
+            }
+
+            @Override
+            public void finished(Bitmap bitmap) {
+                if (bitmap != null) {
+                    release(bitmap);
+                }
+            }
+        };
+    }
+
+    /**
+     * Gives back a reference handed out by a callback. Call it after the
+     * bitmap has been removed from its view.
+     */
+    public void release(Bitmap bitmap) {
+        boolean unused;
+        synchronized (usage) {
+            Usage u = usage.get(bitmap);
+            if (u == null) {
+                return;
+            }
+            u.references--;
+            unused = u.references <= 0 && !u.cached;
+            if (unused) {
+                usage.remove(bitmap);
+            }
+        }
+        if (unused) {
+            bitmapPool.put(bitmap);
+        }
+    }
+
+    private void onRemovedFromCache(Bitmap bitmap) {
+        boolean unused;
+        synchronized (usage) {
+            Usage u = usageOf(bitmap);
+            u.cached = false;
+            unused = u.references <= 0;
+            if (unused) {
+                usage.remove(bitmap);
+            }
+        }
+        if (unused) {
+            bitmapPool.put(bitmap);
+        }
+    }
+
+    private Usage usageOf(Bitmap bitmap) {
+        Usage u = usage.get(bitmap);
+        if (u == null) {
+            u = new Usage();
+            usage.put(bitmap, u);
+        }
+        return u;
+    }
+
+    private Bitmap decode(Uri uri, int width, int height) {
+        try {
+            DiskThumbnailCache.Stamp stamp = DiskThumbnailCache.Stamp.of(resolver, uri);
+            Bitmap bitmap = diskCache.get(uri, width, height, stamp, bitmapPool);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            bitmap = BitmapDecoder.decodeSampled(resolver, uri, width, height, bitmapPool);
+            if (bitmap != null) {
+                bitmap = BitmapDecoder.scaleToCover(bitmap, width, height, bitmapPool);
+                diskCache.put(uri, width, height, stamp, bitmap);
+            }
+            return bitmap;
+        } catch (Exception e) {
+            // Missing files, revoked permissions and corrupt images all end up here
+            e.printStackTrace();
+            return null;
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+
+    private Bitmap decodeScreen(Uri uri, int width, int height) {
+        try {
+            // The viewer shows the whole photo, so fit rather than cover
+            Bitmap bitmap = BitmapDecoder.decodeSampledToFit(resolver, uri, width, height, bitmapPool);
+            return bitmap != null ? BitmapDecoder.scaleToFit(bitmap, width, height, bitmapPool) : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.softmeth.androidphotos.images;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decodes thumbnails for the rows just past the edge of a scrolling grid,
+ * so they are usually in the memory cache by the time they are bound.
+ *
+ * It looks further ahead the faster the list moves, between
+ * {@link #MIN_ROWS_AHEAD} and {@link #MAX_ROWS_AHEAD} rows. Prefetches run
+ * behind every visible cell in {@link ThumbnailLoader}. When the user
+ * turns around, prefetches for the old direction are cancelled.
+ *
+ * A prefetch counts as a hit when its decode finished before its cell
+ * scrolled into view.
+ */
+public class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+    static final int MIN_ROWS_AHEAD = 2;
+    static final int MAX_ROWS_AHEAD = 8;
+    static final float ROWS_PER_VELOCITY = 1.0f;  // Extra rows per pixel/ms
+    static final float VELOCITY_SMOOTHING = 0.5f;
+
+    /**
+     * What the grid shows; implemented by the adapter.
+     */
+    public interface Source {
+        int getCount();
+
+        Uri getUri(int position);
+
+        int getThumbnailWidth();
+
+        int getThumbnailHeight();
+    }
+
+    private final ThumbnailLoader loader;
+    private final Source source;
+    private final Map<Integer, ThumbnailLoader.Request> pending = new HashMap<>();
+
+    private int direction;
+    private float velocity;  // pixels per millisecond, smoothed
+    private long lastScrollTime;
+
+    private int issuedCount;
+    private int hitCount;
+    private int missCount;
+    private int cancelledCount;
+
+    public ThumbnailPrefetcher(ThumbnailLoader loader, Source source) {
+        this.loader = loader;
+        this.source = source;
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0 || source.getThumbnailWidth() == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long elapsed = Math.max(1, now - lastScrollTime);
+        float instant = lastScrollTime == 0 ? 0 : Math.abs(dy) / (float) elapsed;
+        velocity = velocity * VELOCITY_SMOOTHING + instant * (1 - VELOCITY_SMOOTHING);
+        lastScrollTime = now;
+
+        int newDirection = dy > 0 ? 1 : -1;
+        if (newDirection != direction) {
+            cancelAll();
+            direction = newDirection;
+        }
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int columns = layoutManager instanceof GridLayoutManager
+                ? ((GridLayoutManager) layoutManager).getSpanCount() : 1;
+        settleVisible(first, last);
+        prefetch(first, last, columns);
+    }
+
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            velocity = 0;
+            lastScrollTime = 0;
+        }
+    }
+
+    /**
+     * Cancels every outstanding prefetch, e.g. when the grid's contents change.
+     */
+    public void cancelAll() {
+        for (ThumbnailLoader.Request request : pending.values()) {
+            if (!request.isDone()) {
+                request.cancel();
+                cancelledCount++;
+            }
+        }
+        pending.clear();
+    }
+
+    public int getIssuedCount() {
+        return issuedCount;
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public int getCancelledCount() {
+        return cancelledCount;
+    }
+
+    /**
+     * Share of prefetches that were ready before their cell appeared,
+     * between 0 and 1.
+     */
+    public float getHitRatio() {
+        int total = hitCount + missCount;
+        return total == 0 ? 0f : hitCount / (float) total;
+    }
+
+    /**
+     * Scores prefetched cells that have come into view. A fast fling can
+     * carry a cell past the screen between two callbacks, so everything up
+     * to the leading edge counts.
+     */
+    private void settleVisible(int first, int last) {
+        Iterator<Map.Entry<Integer, ThumbnailLoader.Request>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ThumbnailLoader.Request> entry = it.next();
+            int position = entry.getKey();
+            if (direction > 0 ? position <= last : position >= first) {
+                if (entry.getValue().isDone()) {
+                    hitCount++;
+                } else {
+                    // The visible load takes over; drop this one if still queued
+                    entry.getValue().cancel();
+                    missCount++;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private void prefetch(int first, int last, int columns) {
+        int rows = Math.min(MAX_ROWS_AHEAD, MIN_ROWS_AHEAD + (int) (velocity * ROWS_PER_VELOCITY));
+        int count = source.getCount();
+        int start;
+        int end;
+        if (direction > 0) {
+            start = last + 1;
+            end = Math.min(count - 1, last + rows * columns);
+        } else {
+            start = Math.max(0, first - rows * columns);
+            end = first - 1;
+        }
+        // Nearest cells first, since the queue runs them in order
+        for (int i = 0; i <= end - start; i++) {
+            int position = direction > 0 ? start + i : end - i;
+            if (pending.containsKey(position)) {
+                continue;
+            }
+            ThumbnailLoader.Request request = loader.prefetch(source.getUri(position),
+                    source.getThumbnailWidth(), source.getThumbnailHeight());
+            if (request != null) {
+                pending.put(position, request);
+                issuedCount++;
+            }
+        }
+    }
+}
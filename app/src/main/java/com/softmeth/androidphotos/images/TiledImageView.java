@@ -0,0 +1,588 @@
+package com.softmeth.androidphotos.images;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.AttributeSet;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+
+import androidx.appcompat.widget.AppCompatImageView;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Image view for the photo viewer that can zoom into very large images
+ * without decoding them whole.
+ *
+ * The bitmap set on the view, the screen-sized decode from
+ * {@link PhotoWindow}, is the base layer and is always drawn. Once the user
+ * zooms in far enough that the base layer would be blurry, the part of the
+ * original in view is decoded with {@link BitmapRegionDecoder} in tiles of
+ * {@link #TILE_SIZE} screen pixels, at the power-of-two sample size that
+ * matches the zoom, and drawn over it. Tiles that leave the viewport before
+ * they are decoded are cancelled. Decoded tiles are kept in a cache bounded
+ * in bytes, so panning back is instant but a 100 megapixel photo never
+ * fills the heap.
+ *
+ * Pinch to zoom, drag to pan, double-tap to zoom in or back out.
+ */
+public class TiledImageView extends AppCompatImageView {
+    static final int TILE_SIZE = 512;              // Screen pixels per tile side
+    static final float MIN_ZOOM_RANGE = 4f;        // Always allow zooming this far past fit
+    static final float MAX_PIXEL_ZOOM = 2f;        // Screen pixels per image pixel at full zoom
+    static final float DOUBLE_TAP_ZOOM = 3f;
+    static final float ASPECT_TOLERANCE = 0.01f;
+    static final int MEMORY_CLASS_FRACTION = 8;    // 1/8 of the heap limit
+
+    private static final AtomicInteger nextRegionId = new AtomicInteger();
+
+    /**
+     * The original image, opened for region decoding. Tile decodes run on
+     * scheduler threads while the view may close it at any time, so the
+     * decoder is only released once no decode is using it.
+     */
+    private static final class Region {
+        final int id = nextRegionId.getAndIncrement();
+        private ParcelFileDescriptor descriptor;
+        private BitmapRegionDecoder decoder;
+        private int width;
+        private int height;
+        private int active;
+        private boolean closed;
+
+        void open(ContentResolver resolver, Uri uri) throws IOException {
+            ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return;
+            }
+            BitmapRegionDecoder opened;
+            try {
+                opened = BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+            } catch (IOException e) {
+                pfd.close();
+                throw e;
+            }
+            synchronized (this) {
+                descriptor = pfd;
+                decoder = opened;
+                width = opened.getWidth();
+                height = opened.getHeight();
+                if (closed) {
+                    releaseLocked();
+                }
+            }
+        }
+
+        synchronized boolean isOpen() {
+            return decoder != null && !closed;
+        }
+
+        synchronized int getWidth() {
+            return width;
+        }
+
+        synchronized int getHeight() {
+            return height;
+        }
+
+        Bitmap decode(Rect rect, int sampleSize, BitmapPool pool) {
+            BitmapRegionDecoder d;
+            synchronized (this) {
+                if (decoder == null || closed) {
+                    return null;
+                }
+                d = decoder;
+                active++;
+            }
+            try {
+                return BitmapDecoder.decodeRegion(d, rect, sampleSize, pool);
+            } finally {
+                synchronized (this) {
+                    active--;
+                    if (closed && active == 0) {
+                        releaseLocked();
+                    }
+                }
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (active == 0) {
+                releaseLocked();
+            }
+        }
+
+        private void releaseLocked() {
+            if (decoder != null) {
+                decoder.recycle();
+                decoder = null;
+            }
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                descriptor = null;
+            }
+        }
+    }
+
+    /**
+     * One tile of the grid at the current sample size, in image pixels.
+     */
+    private static final class Tile {
+        final String key;
+        final Rect rect;
+        final Rect sampled;  // The part of the decoded bitmap holding the tile
+
+        Tile(String key, Rect rect, int sampleSize) {
+            this.key = key;
+            this.rect = rect;
+            this.sampled = new Rect(0, 0, BitmapDecoder.sampledSize(rect.width(), sampleSize),
+                    BitmapDecoder.sampledSize(rect.height(), sampleSize));
+        }
+    }
+
+    /**
+     * Decodes a tile and hands it to the main thread. A tile finished after
+     * its ticket was cancelled goes back to the pool. Each job is submitted
+     * under its own key so that it has exactly one listener.
+     */
+    private final class TileJob implements DecodeScheduler.Task, DecodeScheduler.Listener {
+        final Region region;
+        final Tile tile;
+        final int sampleSize;
+        DecodeScheduler.Ticket ticket;  // Set on the main thread right after submitting
+        boolean delivered;
+
+        TileJob(Region region, Tile tile, int sampleSize) {
+            this.region = region;
+            this.tile = tile;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        public Bitmap run() {
+            return region.decode(tile.rect, sampleSize, pool);
+        }
+
+        @Override
+        public void onDecoded(Bitmap bitmap) {
+            delivered = true;
+            mainHandler.post(() -> onTileDecoded(this, bitmap));
+        }
+
+        @Override
+        public void finished(Bitmap result) {
+            if (!delivered && result != null) {
+                pool.put(result);
+            }
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ContentResolver resolver;
+    private final DecodeScheduler scheduler;
+    private final BitmapPool pool;
+    private final int defaultCacheBytes;
+    private final LruCache<String, Bitmap> tiles;
+    private final Map<String, DecodeScheduler.Ticket> pending = new HashMap<>();
+    private final List<Tile> visible = new ArrayList<>();
+    private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final Matrix zoomMatrix = new Matrix();      // Pinch and pan, in view pixels
+    private final Matrix imageToView = new Matrix();     // Original image pixels to view pixels
+    private final Matrix drawableMatrix = new Matrix();  // Base layer pixels to view pixels
+    private final Matrix viewToImage = new Matrix();
+    private final RectF scratch = new RectF();
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+
+    private Uri sourceUri;
+    private Region region;
+    private DecodeScheduler.Ticket openTicket;
+    private int submissions;
+    private int imageWidth;
+    private int imageHeight;
+    private boolean baseMatchesRegion;
+    private float fitScale = 1f;
+    private float zoom = 1f;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        ThumbnailLoader loader = ThumbnailLoader.getInstance(context);
+        resolver = context.getContentResolver();
+        scheduler = loader.getScheduler();
+        pool = loader.getBitmapPool();
+        defaultCacheBytes = defaultCacheBytes(context);
+        tiles = new LruCache<String, Bitmap>(defaultCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    pool.put(oldValue);
+                }
+            }
+        };
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent first, MotionEvent e, float dx, float dy) {
+                if (zoom <= 1f) {
+                    return false;
+                }
+                zoomMatrix.postTranslate(-dx, -dy);
+                onViewportChanged();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                if (zoom > 1f) {
+                    zoomBy(1f / zoom, e.getX(), e.getY());
+                } else {
+                    zoomBy(DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+                }
+                return true;
+            }
+        });
+        setScaleType(ScaleType.MATRIX);
+    }
+
+    static int defaultCacheBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = am != null ? am.getMemoryClass() : 32;
+        return memoryClassMb * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+    }
+
+    /**
+     * Opens the original of the photo being shown, for tiles once the user
+     * zooms in. Resets the zoom when the photo changes.
+     */
+    public void setSource(Uri uri) {
+        if (uri == null ? sourceUri == null : uri.equals(sourceUri)) {
+            return;
+        }
+        clearSource();
+        sourceUri = uri;
+        if (uri == null) {
+            return;
+        }
+        Region opening = new Region();
+        region = opening;
+        openTicket = scheduler.submit("region#" + opening.id, DecodeScheduler.Priority.VISIBLE, () -> {
+            opening.open(resolver, uri);
+            return null;
+        }, bitmap -> mainHandler.post(() -> {
+            if (region == opening) {
+                openTicket = null;
+                updateMatrix();
+            }
+        }));
+    }
+
+    /**
+     * Closes the original and drops every tile. The base layer stays.
+     */
+    public void clearSource() {
+        if (openTicket != null) {
+            openTicket.cancel();
+            openTicket = null;
+        }
+        cancelPending(null);
+        visible.clear();
+        tiles.evictAll();
+        if (region != null) {
+            region.close();
+            region = null;
+        }
+        sourceUri = null;
+        zoomMatrix.reset();
+        zoom = 1f;
+        updateMatrix();
+    }
+
+    public float getZoom() {
+        return zoom;
+    }
+
+    public int getTileCacheSizeBytes() {
+        return tiles.size();
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        updateMatrix();
+    }
+
+    @Override
+    public void setImageBitmap(Bitmap bitmap) {
+        super.setImageBitmap(bitmap);
+        updateMatrix();
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        super.setImageResource(resId);
+        updateMatrix();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // Room for a screenful of tiles plus the ring around it
+        int tilesPerScreen = (w / TILE_SIZE + 2) * (h / TILE_SIZE + 2);
+        tiles.resize(Math.max(defaultCacheBytes, 2 * tilesPerScreen * TILE_SIZE * TILE_SIZE * 4));
+        updateMatrix();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        clearSource();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
+        if (zoom > 1f && getParent() != null) {
+            // Dragging a zoomed photo pans it instead of scrolling the page
+            getParent().requestDisallowInterceptTouchEvent(true);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (visible.isEmpty()) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(imageToView);
+        for (Tile tile : visible) {
+            Bitmap bitmap = tiles.get(tile.key);
+            if (bitmap != null) {
+                scratch.set(tile.rect);
+                canvas.drawBitmap(bitmap, tile.sampled, scratch, tilePaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    private void zoomBy(float factor, float focusX, float focusY) {
+        float target = Math.max(1f, Math.min(maxZoom(), zoom * factor));
+        float applied = target / zoom;
+        zoom = target;
+        zoomMatrix.postScale(applied, applied, focusX, focusY);
+        onViewportChanged();
+    }
+
+    private float maxZoom() {
+        return Math.max(MIN_ZOOM_RANGE, MAX_PIXEL_ZOOM / fitScale);
+    }
+
+    private void onViewportChanged() {
+        updateMatrix();
+        invalidate();
+    }
+
+    /**
+     * Fits the image to the view, applies the user's zoom and keeps the
+     * image from being dragged off screen, then works out which tiles the
+     * new viewport needs.
+     */
+    private void updateMatrix() {
+        if (tiles == null) {
+            return;  // Called from the superclass constructor
+        }
+        Drawable drawable = getDrawable();
+        int viewWidth = getWidth();
+        int viewHeight = getHeight();
+        if (drawable == null || viewWidth == 0 || viewHeight == 0
+                || drawable.getIntrinsicWidth() <= 0 || drawable.getIntrinsicHeight() <= 0) {
+            cancelPending(null);
+            visible.clear();
+            return;
+        }
+        int baseWidth = drawable.getIntrinsicWidth();
+        int baseHeight = drawable.getIntrinsicHeight();
+
+        // The base layer is placed in the original's coordinates when it is
+        // a smaller copy of it, so tiles land exactly on top
+        baseMatchesRegion = region != null && region.isOpen()
+                && sameAspect(baseWidth, baseHeight, region.getWidth(), region.getHeight());
+        imageWidth = baseMatchesRegion ? region.getWidth() : baseWidth;
+        imageHeight = baseMatchesRegion ? region.getHeight() : baseHeight;
+        fitScale = Math.min(viewWidth / (float) imageWidth, viewHeight / (float) imageHeight);
+
+        imageToView.setScale(fitScale, fitScale);
+        imageToView.postTranslate((viewWidth - imageWidth * fitScale) / 2f,
+                (viewHeight - imageHeight * fitScale) / 2f);
+        imageToView.postConcat(zoomMatrix);
+        keepInView(viewWidth, viewHeight);
+
+        drawableMatrix.setScale(imageWidth / (float) baseWidth, imageHeight / (float) baseHeight);
+        drawableMatrix.postConcat(imageToView);
+        setImageMatrix(drawableMatrix);
+
+        updateTiles(viewWidth, viewHeight, baseWidth);
+    }
+
+    /**
+     * Centres the image on any axis where it is smaller than the view and
+     * closes gaps at the edges on the others.
+     */
+    private void keepInView(int viewWidth, int viewHeight) {
+        scratch.set(0, 0, imageWidth, imageHeight);
+        imageToView.mapRect(scratch);
+        float dx = correction(scratch.left, scratch.right, viewWidth);
+        float dy = correction(scratch.top, scratch.bottom, viewHeight);
+        if (dx != 0 || dy != 0) {
+            zoomMatrix.postTranslate(dx, dy);
+            imageToView.postTranslate(dx, dy);
+        }
+    }
+
+    private static float correction(float start, float end, int size) {
+        if (end - start <= size) {
+            return (size - start - end) / 2f;
+        }
+        if (start > 0) {
+            return -start;
+        }
+        if (end < size) {
+            return size - end;
+        }
+        return 0;
+    }
+
+    private void updateTiles(int viewWidth, int viewHeight, int baseWidth) {
+        float scale = fitScale * zoom;  // Screen pixels per image pixel
+        float baseScale = baseWidth / (float) imageWidth;
+        if (!baseMatchesRegion || scale <= baseScale) {
+            // No original to decode from, or the base layer is sharp enough
+            cancelPending(null);
+            visible.clear();
+            return;
+        }
+
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        int tileSide = TILE_SIZE * sampleSize;
+
+        imageToView.invert(viewToImage);
+        scratch.set(0, 0, viewWidth, viewHeight);
+        viewToImage.mapRect(scratch);
+        int firstCol = Math.max(0, (int) (scratch.left / tileSide));
+        int firstRow = Math.max(0, (int) (scratch.top / tileSide));
+        int lastCol = Math.min((imageWidth - 1) / tileSide, (int) (scratch.right / tileSide));
+        int lastRow = Math.min((imageHeight - 1) / tileSide, (int) (scratch.bottom / tileSide));
+
+        visible.clear();
+        Set<String> wanted = new HashSet<>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                String key = region.id + ":" + sampleSize + ":" + col + ":" + row;
+                Rect rect = new Rect(col * tileSide, row * tileSide,
+                        Math.min(imageWidth, (col + 1) * tileSide),
+                        Math.min(imageHeight, (row + 1) * tileSide));
+                Tile tile = new Tile(key, rect, sampleSize);
+                visible.add(tile);
+                wanted.add(key);
+                if (!pending.containsKey(key) && tiles.get(key) == null) {
+                    TileJob job = new TileJob(region, tile, sampleSize);
+                    job.ticket = scheduler.submit(key + "#" + submissions++,
+                            DecodeScheduler.Priority.VISIBLE, job, job);
+                    pending.put(key, job.ticket);
+                }
+            }
+        }
+        cancelPending(wanted);
+    }
+
+    /**
+     * Cancels tile decodes not in the set, or all of them if it is null.
+     */
+    private void cancelPending(Set<String> keep) {
+        for (Iterator<Map.Entry<String, DecodeScheduler.Ticket>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, DecodeScheduler.Ticket> entry = it.next();
+            if (keep == null || !keep.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private void onTileDecoded(TileJob job, Bitmap bitmap) {
+        // A cancelled decode can still deliver after the tile was asked for
+        // again; leave the newer request in place
+        pending.remove(job.tile.key, job.ticket);
+        if (bitmap == null) {
+            return;
+        }
+        if (job.region != region) {
+            pool.put(bitmap);  // The photo changed while it was decoding
+            return;
+        }
+        tiles.put(job.tile.key, bitmap);
+        invalidate();
+    }
+
+    private static boolean sameAspect(int width, int height, int otherWidth, int otherHeight) {
+        if (otherWidth <= 0 || otherHeight <= 0) {
+            return false;
+        }
+        float aspect = width / (float) height;
+        float otherAspect = otherWidth / (float) otherHeight;
+        return Math.abs(aspect - otherAspect) <= ASPECT_TOLERANCE * otherAspect;
+    }
+}
@@ -1,26 +1,121 @@
 package com.softmeth.androidphotos.models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a photo album.
  * Simplified version without dates.
+ *
+ * Photos are kept in a list in the order they were added, for positional
+ * access, plus a map from URI to position so membership checks and
+ * position lookups do not scan the list. The map is not serialized; it is
+ * rebuilt whenever the list is read back or loaded.
  */
 public class Album implements Serializable {
     private static final long serialVersionUID = 1L;
     
+    /**
+     * Supplies an album's photos the first time they are needed.
+     */
+    public interface PhotoLoader {
+        List<Photo> loadPhotos();
+    }
+    
     private String name;
-    private List<Photo> photos;
+    private List<Photo> photos;  // null until loaded
+    private transient Map<String, Integer> positions;  // URI -> index in photos
+    private transient List<Photo> photosView;
+    private transient PhotoLoader loader;
+    private transient int storedPhotoCount;
     
     public Album(String name) {
         this.name = name;
         this.photos = new ArrayList<>();
+        indexPhotos();
+    }
+    
+    /**
+     * Creates an album from photos read back from storage.
+     * The list is used as-is and must not contain duplicates.
+     */
+    public Album(String name, List<Photo> photos) {
+        this.name = name;
+        this.photos = photos;
+        indexPhotos();
+    }
+    
+    /**
+     * Creates an album whose photos stay on disk until first accessed.
+     * The photo count is known up front so lists can show it without loading.
+     */
+    public Album(String name, int photoCount, PhotoLoader loader) {
+        this.name = name;
+        this.storedPhotoCount = photoCount;
+        this.loader = loader;
+    }
+    
+    /**
+     * Deep-copies an album (photos and their tag lists) for saving off the UI thread.
+     * An album that was never loaded stays unloaded and shares the loader.
+     */
+    public Album(Album other) {
+        this.name = other.name;
+        if (other.photos == null) {
+            this.storedPhotoCount = other.storedPhotoCount;
+            this.loader = other.loader;
+            return;
+        }
+        this.photos = new ArrayList<>(other.photos.size());
+        for (Photo photo : other.photos) {
+            photos.add(new Photo(photo));
+        }
+        indexPhotos();
+    }
+    
+    public boolean isLoaded() {
+        return photos != null;
+    }
+    
+    /**
+     * Returns the loader of an album that has not been loaded yet, else null.
+     */
+    public PhotoLoader getPhotoLoader() {
+        return photos == null ? loader : null;
+    }
+    
+    private void ensureLoaded() {
+        if (photos == null) {
+            photos = loader.loadPhotos();
+            loader = null;
+            indexPhotos();
+        }
+    }
+    
+    private void indexPhotos() {
+        photosView = Collections.unmodifiableList(photos);
+        positions = new HashMap<>(photos.size() * 4 / 3 + 1);
+        for (int i = 0; i < photos.size(); i++) {
+            positions.put(photos.get(i).getUriString(), i);
+        }
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (photos != null) {
+            indexPhotos();
+        }
     }
     
     public boolean addPhoto(Photo photo) {
-        if (photos.contains(photo)) {
+        ensureLoaded();
+        if (positions.putIfAbsent(photo.getUriString(), photos.size()) != null) {
             return false;
         }
         photos.add(photo);
@@ -28,14 +123,54 @@ public class Album implements Serializable {
     }
     
     public boolean removePhoto(Photo photo) {
-        return photos.remove(photo);
+        ensureLoaded();
+        Integer position = positions.remove(photo.getUriString());
+        if (position == null) {
+            return false;
+        }
+        photos.remove((int) position);
+        // Everything after it moves up one
+        for (int i = position; i < photos.size(); i++) {
+            positions.put(photos.get(i).getUriString(), i);
+        }
+        return true;
+    }
+    
+    public boolean containsPhoto(Photo photo) {
+        ensureLoaded();
+        return positions.containsKey(photo.getUriString());
+    }
+    
+    /**
+     * Returns the instance stored in this album for the URI, or null if
+     * the album does not hold it.
+     */
+    public Photo findPhoto(String uriString) {
+        int position = indexOfPhoto(uriString);
+        return position >= 0 ? photos.get(position) : null;
+    }
+    
+    /**
+     * Returns the position of the photo with the URI, or -1.
+     */
+    public int indexOfPhoto(String uriString) {
+        ensureLoaded();
+        Integer position = positions.get(uriString);
+        return position != null ? position : -1;
     }
     
+    /**
+     * Returns the photos in order. The list is a read-only view: edits go
+     * through {@link #addPhoto} and {@link #removePhoto} so the index
+     * stays in step.
+     */
     public List<Photo> getPhotos() {
-        return photos;  // Return actual list, not a copy
+        ensureLoaded();
+        return photosView;
     }
     
     public Photo getPhoto(int index) {
+        ensureLoaded();
         if (index >= 0 && index < photos.size()) {
             return photos.get(index);
         }
@@ -43,7 +178,7 @@ public class Album implements Serializable {
     }
     
     public int getPhotoCount() {
-        return photos.size();
+        return photos == null ? storedPhotoCount : photos.size();
     }
     
     public String getName() {
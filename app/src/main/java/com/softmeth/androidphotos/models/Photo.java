@@ -3,11 +3,17 @@ package com.softmeth.androidphotos.models;
 import android.net.Uri;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Represents a photo.
  * Simplified - no dates, filename is caption.
+ *
+ * Tags are read without copying: {@link #getTags()} is a read-only view,
+ * and {@link #hasTag}, {@link #getTag} and {@link #forEachTag} do not
+ * allocate, so scanning many photos makes no garbage.
  */
 public class Photo implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -15,24 +21,42 @@ public class Photo implements Serializable {
     private String uriString;
     private String fileName;
     private List<Tag> tags;
+    private transient List<Tag> tagsView;
     
     public Photo(Uri uri, String fileName) {
-        this.uriString = uri.toString();
+        this(uri.toString(), fileName);
+    }
+    
+    public Photo(String uriString, String fileName) {
+        this.uriString = uriString;
         this.fileName = fileName;
         this.tags = new ArrayList<>();
     }
     
+    /**
+     * Copies a photo and its tag list so the copy can be read off the UI thread.
+     */
+    public Photo(Photo other) {
+        this.uriString = other.uriString;
+        this.fileName = other.fileName;
+        this.tags = new ArrayList<>(other.tags);
+    }
+    
     public Uri getUri() {
         return Uri.parse(uriString);
     }
     
+    public String getUriString() {
+        return uriString;
+    }
+    
     public String getFileName() {
         return fileName;
     }
     
     public boolean addTag(String tagName, String tagValue) {
-        Tag newTag = new Tag(tagName, tagValue);
-        if (tags.contains(newTag)) {
+        Tag newTag = Tag.of(tagName, tagValue);
+        if (indexOfTag(newTag.getKeyId()) >= 0) {
             return false;
         }
         tags.add(newTag);
@@ -40,16 +64,57 @@ public class Photo implements Serializable {
     }
     
     public boolean removeTag(String tagName, String tagValue) {
-        Tag tagToRemove = new Tag(tagName, tagValue);
-        return tags.remove(tagToRemove);
+        int index = indexOfTag(Tag.keyIdOf(Tag.key(tagName, tagValue)));
+        if (index < 0) {
+            return false;
+        }
+        tags.remove(index);
+        return true;
     }
     
     public boolean hasTag(String tagName, String tagValue) {
-        return tags.contains(new Tag(tagName, tagValue));
+        return hasTag(Tag.key(tagName, tagValue));
+    }
+    
+    /**
+     * Checks for a tag by its {@link Tag#key}. Fold the key once and reuse
+     * it when checking many photos.
+     */
+    public boolean hasTag(String tagKey) {
+        return indexOfTag(Tag.keyIdOf(tagKey)) >= 0;
+    }
+    
+    /**
+     * Checks for a tag equal to this one ignoring case; an int comparison
+     * per tag.
+     */
+    public boolean hasTag(Tag tag) {
+        return indexOfTag(tag.getKeyId()) >= 0;
     }
     
+    /**
+     * Returns a read-only view of the tags, not a copy. It changes as tags
+     * are added and removed.
+     */
     public List<Tag> getTags() {
-        return new ArrayList<>(tags);
+        if (tagsView == null) {
+            tagsView = Collections.unmodifiableList(tags);
+        }
+        return tagsView;
+    }
+    
+    public int getTagCount() {
+        return tags.size();
+    }
+    
+    public Tag getTag(int index) {
+        return tags.get(index);
+    }
+    
+    public void forEachTag(Consumer<? super Tag> action) {
+        for (int i = 0; i < tags.size(); i++) {
+            action.accept(tags.get(i));
+        }
     }
     
     public List<Tag> getTagsByName(String tagName) {
@@ -62,6 +127,18 @@ public class Photo implements Serializable {
         return result;
     }
     
+    private int indexOfTag(int keyId) {
+        if (keyId < 0) {
+            return -1;  // No tag anywhere has this key
+        }
+        for (int i = 0; i < tags.size(); i++) {
+            if (tags.get(i).getKeyId() == keyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
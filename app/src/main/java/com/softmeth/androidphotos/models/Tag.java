@@ -1,19 +1,51 @@
 package com.softmeth.androidphotos.models;
 
 import java.io.Serializable;
+import java.util.Locale;
 
 /**
  * Represents a tag with name-value pair.
+ *
+ * Tags are immutable and shared: {@link #of} returns the one instance for
+ * a name and value. Tags compare ignoring case; the case-folded key and an
+ * int id for it are worked out once when the tag is first made, so
+ * {@link #equals} and {@link #hashCode} are int operations.
  */
-public class Tag implements Serializable {
+public final class Tag implements Serializable {
     private static final long serialVersionUID = 1L;
     
-    private String name;
-    private String value;
+    private final String name;
+    private final String value;
+    private final transient String key;  // Folded name and value
+    private final transient int keyId;   // Same for tags equal ignoring case
     
-    public Tag(String name, String value) {
+    Tag(String name, String value, String key, int keyId) {
         this.name = name;
         this.value = value;
+        this.key = key;
+        this.keyId = keyId;
+    }
+    
+    /**
+     * Returns the shared tag with this exact name and value.
+     */
+    public static Tag of(String name, String value) {
+        return TagDictionary.intern(name, value);
+    }
+    
+    /**
+     * The key two tags share when they are equal ignoring case.
+     */
+    public static String key(String name, String value) {
+        return name.toLowerCase(Locale.ROOT) + '\u0000' + value.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Returns the id of the key, or -1 if no tag in this process has it.
+     * Looking up an id does not add a tag.
+     */
+    public static int keyIdOf(String key) {
+        return TagDictionary.idOf(key);
     }
     
     public String getName() {
@@ -24,17 +56,31 @@ public class Tag implements Serializable {
         return value;
     }
     
+    public String getKey() {
+        return key;
+    }
+    
+    public int getKeyId() {
+        return keyId;
+    }
+    
+    /**
+     * Deserialized tags are swapped for the shared instance.
+     */
+    private Object readResolve() {
+        return of(name, value);
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
-        if (obj == null || getClass() != obj.getClass()) return false;
-        Tag tag = (Tag) obj;
-        return name.equalsIgnoreCase(tag.name) && value.equalsIgnoreCase(tag.value);
+        if (!(obj instanceof Tag)) return false;
+        return keyId == ((Tag) obj).keyId;
     }
     
     @Override
     public int hashCode() {
-        return (name.toLowerCase() + value.toLowerCase()).hashCode();
+        return keyId;
     }
     
     @Override
@@ -0,0 +1,55 @@
+package com.softmeth.androidphotos.models;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide table of the tags in the library, so each distinct tag is
+ * one shared {@link Tag} and each case-folded key has one small int id.
+ *
+ * Entries are never removed; a library has a few thousand distinct tags
+ * at most.
+ */
+final class TagDictionary {
+
+    /**
+     * A case-folded key and its id.
+     */
+    private static final class Folded {
+        final String key;
+        final int id;
+
+        Folded(String key, int id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+
+    private static final Map<String, Tag> tags = new ConcurrentHashMap<>();  // Exact name and value
+    private static final Map<String, Folded> keys = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private TagDictionary() {
+    }
+
+    static Tag intern(String name, String value) {
+        return tags.computeIfAbsent(name + '\u0000' + value, exact -> {
+            Folded folded = keys.computeIfAbsent(Tag.key(name, value),
+                    key -> new Folded(key, nextId.getAndIncrement()));
+            return new Tag(name, value, folded.key, folded.id);
+        });
+    }
+
+    /**
+     * Returns the id of a case-folded key, or -1 if no tag has it.
+     */
+    static int idOf(String key) {
+        Folded folded = keys.get(key);
+        return folded != null ? folded.id : -1;
+    }
+
+    static int size() {
+        return tags.size();
+    }
+}
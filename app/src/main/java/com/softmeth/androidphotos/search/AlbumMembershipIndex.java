@@ -0,0 +1,100 @@
+package com.softmeth.androidphotos.search;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reverse index from a photo URI to the albums holding it, so a search hit
+ * can be opened without scanning every album. The position within an
+ * album comes from {@link Album#indexOfPhoto}, which is also a hash lookup.
+ *
+ * Albums are listed in the order the picture was added to them. The index
+ * is kept up to date by {@link com.softmeth.androidphotos.data.AlbumRepository}.
+ */
+public class AlbumMembershipIndex {
+
+    /**
+     * Where a photo sits: an album and its position in it.
+     */
+    public static final class Membership {
+        public final Album album;
+        public final int position;
+
+        Membership(Album album, int position) {
+            this.album = album;
+            this.position = position;
+        }
+    }
+
+    private final Map<String, List<Album>> albumsByUri = new HashMap<>();
+
+    public AlbumMembershipIndex(List<Album> albums) {
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                add(album, photo);
+            }
+        }
+    }
+
+    public void add(Album album, Photo photo) {
+        List<Album> albums = albumsByUri.get(photo.getUriString());
+        if (albums == null) {
+            // Most pictures are in a single album
+            albums = new ArrayList<>(1);
+            albumsByUri.put(photo.getUriString(), albums);
+        }
+        if (!albums.contains(album)) {
+            albums.add(album);
+        }
+    }
+
+    public void remove(Album album, Photo photo) {
+        List<Album> albums = albumsByUri.get(photo.getUriString());
+        if (albums != null && albums.remove(album) && albums.isEmpty()) {
+            albumsByUri.remove(photo.getUriString());
+        }
+    }
+
+    public void removeAlbum(Album album) {
+        for (Photo photo : album.getPhotos()) {
+            remove(album, photo);
+        }
+    }
+
+    /**
+     * Albums holding a photo with this URI. The returned list must not be
+     * modified.
+     */
+    public List<Album> albumsOf(String uriString) {
+        List<Album> albums = albumsByUri.get(uriString);
+        return albums != null ? albums : Collections.emptyList();
+    }
+
+    /**
+     * Where to open the photo: the album holding this very instance if
+     * there is one, else the first album holding its URI. Null if no album
+     * holds it anymore.
+     */
+    public Membership locate(Photo photo) {
+        Membership first = null;
+        for (Album album : albumsOf(photo.getUriString())) {
+            int position = album.indexOfPhoto(photo.getUriString());
+            if (position < 0) {
+                continue;
+            }
+            if (album.getPhoto(position) == photo) {
+                return new Membership(album, position);
+            }
+            if (first == null) {
+                first = new Membership(album, position);
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,118 @@
+package com.softmeth.androidphotos.search;
+
+import java.util.Arrays;
+
+/**
+ * Finds 64-bit hashes within a small Hamming distance of a query without
+ * comparing against every entry (multi-index hashing).
+ *
+ * Each hash is split into {@link #CHUNKS} 16-bit chunks and filed under
+ * every chunk value. If two hashes differ in at most {@code d} bits, at
+ * least one of their chunks differs in at most {@code d / CHUNKS} bits, so
+ * a search only has to look in the buckets near each query chunk and check
+ * the few hashes it finds there. With 100,000 entries and d = 8 that is a
+ * few hundred bucket lookups instead of 100,000 comparisons.
+ *
+ * Not thread-safe.
+ */
+public class HammingIndex {
+    static final int CHUNKS = 4;
+    static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final PostingList[][] tables = new PostingList[CHUNKS][];
+    private long[] hashes = new long[16];  // By id
+    private boolean[] present = new boolean[16];
+    private int size;
+
+    public HammingIndex() {
+        for (int c = 0; c < CHUNKS; c++) {
+            tables[c] = new PostingList[1 << CHUNK_BITS];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Files the hash under the id, replacing whatever the id had.
+     */
+    public void add(int id, long hash) {
+        remove(id);
+        if (id >= hashes.length) {
+            int capacity = Math.max(id + 1, hashes.length * 2);
+            hashes = Arrays.copyOf(hashes, capacity);
+            present = Arrays.copyOf(present, capacity);
+        }
+        hashes[id] = hash;
+        present[id] = true;
+        size++;
+        for (int c = 0; c < CHUNKS; c++) {
+            int chunk = chunk(hash, c);
+            PostingList bucket = tables[c][chunk];
+            if (bucket == null) {
+                bucket = new PostingList();
+                tables[c][chunk] = bucket;
+            }
+            bucket.add(id);
+        }
+    }
+
+    public boolean remove(int id) {
+        if (id >= present.length || !present[id]) {
+            return false;
+        }
+        present[id] = false;
+        size--;
+        for (int c = 0; c < CHUNKS; c++) {
+            int chunk = chunk(hashes[id], c);
+            PostingList bucket = tables[c][chunk];
+            bucket.remove(id);
+            if (bucket.isEmpty()) {
+                tables[c][chunk] = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ids of every hash at most maxDistance bits away from the query, in
+     * increasing order.
+     */
+    public PostingList search(long hash, int maxDistance) {
+        PostingList result = new PostingList();
+        int radius = maxDistance / CHUNKS;
+        for (int c = 0; c < CHUNKS; c++) {
+            probe(c, chunk(hash, c), 0, radius, hash, maxDistance, result);
+        }
+        return result;
+    }
+
+    /**
+     * Visits every chunk value within the radius of the given one by
+     * flipping up to {@code radius} bits at or above {@code fromBit}.
+     */
+    private void probe(int c, int value, int fromBit, int radius, long hash, int maxDistance,
+                       PostingList result) {
+        PostingList bucket = tables[c][value];
+        if (bucket != null) {
+            for (int i = 0; i < bucket.size(); i++) {
+                int id = bucket.get(i);
+                if (Long.bitCount(hashes[id] ^ hash) <= maxDistance) {
+                    result.add(id);
+                }
+            }
+        }
+        if (radius == 0) {
+            return;
+        }
+        for (int bit = fromBit; bit < CHUNK_BITS; bit++) {
+            probe(c, value ^ (1 << bit), bit + 1, radius - 1, hash, maxDistance, result);
+        }
+    }
+
+    private static int chunk(long hash, int c) {
+        return (int) (hash >>> (c * CHUNK_BITS)) & CHUNK_MASK;
+    }
+}
@@ -0,0 +1,179 @@
+package com.softmeth.androidphotos.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted set of photo ids backed by an int array.
+ * New photos get increasing ids, so adds are usually appends.
+ */
+public class PostingList {
+    // Size ratio above which intersect probes the larger list instead of merging
+    private static final int SKEW = 16;
+
+    private int[] ids;
+    private int size;
+
+    public PostingList() {
+        this(4);
+    }
+
+    PostingList(int capacity) {
+        ids = new int[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        return ids[index];
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    public boolean add(int id) {
+        if (size > 0 && ids[size - 1] < id) {
+            ensureCapacity(size + 1);
+            ids[size++] = id;
+            return true;
+        }
+        int pos = Arrays.binarySearch(ids, 0, size, id);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        ensureCapacity(size + 1);
+        System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+        ids[pos] = id;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int id) {
+        int pos = Arrays.binarySearch(ids, 0, size, id);
+        if (pos < 0) {
+            return false;
+        }
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Ids present in both lists.
+     */
+    public static PostingList intersect(PostingList a, PostingList b) {
+        if (a.size > b.size) {
+            PostingList swap = a;
+            a = b;
+            b = swap;
+        }
+        if ((long) a.size * SKEW < b.size) {
+            // Much smaller than the other: binary search it instead of merging
+            PostingList result = new PostingList(a.size);
+            for (int i = 0; i < a.size; i++) {
+                if (b.contains(a.ids[i])) {
+                    result.ids[result.size++] = a.ids[i];
+                }
+            }
+            return result;
+        }
+        PostingList result = new PostingList(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            int x = a.ids[i];
+            int y = b.ids[j];
+            if (x == y) {
+                result.ids[result.size++] = x;
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ids present in either list.
+     */
+    public static PostingList union(PostingList a, PostingList b) {
+        PostingList result = new PostingList(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            int next;
+            if (j >= b.size || (i < a.size && a.ids[i] < b.ids[j])) {
+                next = a.ids[i++];
+            } else if (i >= a.size || b.ids[j] < a.ids[i]) {
+                next = b.ids[j++];
+            } else {
+                next = a.ids[i++];
+                j++;
+            }
+            result.ids[result.size++] = next;
+        }
+        return result;
+    }
+
+    /**
+     * Ids present in any of the lists. Merges them in pairs, so every id
+     * is copied about log2(lists) times rather than once per list.
+     */
+    public static PostingList unionAll(List<PostingList> lists) {
+        if (lists.isEmpty()) {
+            return new PostingList();
+        }
+        List<PostingList> round = lists;
+        while (round.size() > 1) {
+            List<PostingList> next = new ArrayList<>((round.size() + 1) / 2);
+            for (int i = 0; i < round.size(); i += 2) {
+                next.add(i + 1 < round.size() ? union(round.get(i), round.get(i + 1)) : round.get(i));
+            }
+            round = next;
+        }
+        return round.get(0);
+    }
+
+    /**
+     * Ids in the first list but not the second.
+     */
+    public static PostingList difference(PostingList a, PostingList b) {
+        PostingList result = new PostingList(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            int x = a.ids[i];
+            while (j < b.size && b.ids[j] < x) {
+                j++;
+            }
+            if (j >= b.size || b.ids[j] != x) {
+                result.ids[result.size++] = x;
+            }
+        }
+        return result;
+    }
+
+    public PostingList copy() {
+        PostingList copy = new PostingList(size);
+        System.arraycopy(ids, 0, copy.ids, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(capacity, ids.length * 2));
+        }
+    }
+}
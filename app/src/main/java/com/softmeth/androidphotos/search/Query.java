@@ -0,0 +1,120 @@
+package com.softmeth.androidphotos.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed search: tag terms combined with AND, OR and NOT.
+ * Built by {@link QueryParser} and run through a {@link QueryPlan}.
+ *
+ * {@link #toString()} gives the query back as text the parser accepts,
+ * with every value quoted and every nested group in parentheses.
+ */
+public abstract class Query {
+
+    Query() {
+    }
+
+    /**
+     * Photos tagged with the name and value, ignoring case.
+     */
+    public static final class Term extends Query {
+        public final String name;
+        public final String value;
+
+        public Term(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + quote(value);
+        }
+    }
+
+    /**
+     * Free text: photos with a tag value of any type starting with the
+     * prefix, ignoring case.
+     */
+    public static final class Word extends Query {
+        public final String prefix;
+
+        public Word(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String toString() {
+            return quote(prefix);
+        }
+    }
+
+    /**
+     * Photos matching every child.
+     */
+    public static final class And extends Query {
+        public final List<Query> children;
+
+        public And(List<Query> children) {
+            this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " AND ");
+        }
+    }
+
+    /**
+     * Photos matching at least one child.
+     */
+    public static final class Or extends Query {
+        public final List<Query> children;
+
+        public Or(List<Query> children) {
+            this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " OR ");
+        }
+    }
+
+    /**
+     * Photos not matching the child.
+     */
+    public static final class Not extends Query {
+        public final Query child;
+
+        public Not(Query child) {
+            this.child = child;
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + group(child);
+        }
+    }
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String join(List<Query> children, String operator) {
+        StringBuilder sb = new StringBuilder();
+        for (Query child : children) {
+            if (sb.length() > 0) {
+                sb.append(operator);
+            }
+            sb.append(group(child));
+        }
+        return sb.toString();
+    }
+
+    private static String group(Query query) {
+        return query instanceof And || query instanceof Or ? "(" + query + ")" : query.toString();
+    }
+}
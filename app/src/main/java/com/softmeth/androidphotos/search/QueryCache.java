@@ -0,0 +1,202 @@
+package com.softmeth.androidphotos.search;
+
+import com.softmeth.androidphotos.models.Tag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Small LRU of recent search results for a {@link TagIndex}, keyed by the
+ * normalized query and valid for one version of the index.
+ *
+ * Queries are normalized before lookup: names and values are case-folded
+ * and the operands of AND and OR are sorted, so {@code Person:Bob AND
+ * location:nyc} and {@code location:NYC person:bob} share an entry.
+ *
+ * Each entry remembers which tags its result depends on. When the index
+ * changes, only the entries that could see the change are dropped and the
+ * rest are carried over to the new version, so tagging one photo does not
+ * throw away unrelated searches.
+ *
+ * Not thread-safe; {@link TagIndex} only calls it under its own lock.
+ */
+class QueryCache {
+    static final int CAPACITY = 32;
+
+    private static final class Cached {
+        final PostingList ids;
+        final Set<String> terms = new HashSet<>();    // TagIndex keys of Term operands
+        final List<String> prefixes = new ArrayList<>();  // Case-folded Word operands
+        boolean negates;  // Has a NOT, so depends on the set of all photos
+
+        Cached(PostingList ids) {
+            this.ids = ids;
+        }
+
+        boolean dependsOn(String tagKey, String foldedValue) {
+            if (terms.contains(tagKey)) {
+                return true;
+            }
+            for (String prefix : prefixes) {
+                if (foldedValue.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Map<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private long version;
+
+    /**
+     * The cached ids for the key, or null if there are none for this version.
+     */
+    PostingList get(String key, long indexVersion) {
+        if (indexVersion != version) {
+            // Changed without telling us; nothing can be trusted
+            entries.clear();
+            version = indexVersion;
+            return null;
+        }
+        Cached entry = entries.get(key);
+        return entry != null ? entry.ids : null;
+    }
+
+    /**
+     * @param ids a list the index will not change later
+     */
+    void put(String key, Query query, PostingList ids, long indexVersion) {
+        if (indexVersion != version) {
+            entries.clear();
+            version = indexVersion;
+        }
+        Cached entry = new Cached(ids);
+        collect(query, entry);
+        entries.put(key, entry);
+    }
+
+    /**
+     * A tag was added to or removed from a photo in the index.
+     */
+    void tagChanged(String tagName, String tagValue, long newVersion) {
+        String key = TagIndex.key(tagName, tagValue);
+        String folded = tagValue.toLowerCase(Locale.ROOT);
+        for (Iterator<Cached> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().dependsOn(key, folded)) {
+                it.remove();
+            }
+        }
+        carryOver(newVersion);
+    }
+
+    /**
+     * A photo with these tags was added to or removed from the index.
+     */
+    void photoChanged(List<Tag> tags, long newVersion) {
+        for (Iterator<Cached> it = entries.values().iterator(); it.hasNext(); ) {
+            Cached entry = it.next();
+            if (entry.negates) {
+                it.remove();
+                continue;
+            }
+            for (Tag tag : tags) {
+                if (entry.dependsOn(tag.getKey(), tag.getValue().toLowerCase(Locale.ROOT))) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        carryOver(newVersion);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void carryOver(long newVersion) {
+        if (version == newVersion - 1) {
+            version = newVersion;
+        } else {
+            // Missed a change somewhere
+            entries.clear();
+            version = newVersion;
+        }
+    }
+
+    /**
+     * A string that is equal for queries that always match the same photos
+     * up to case and operand order.
+     */
+    static String key(Query query) {
+        StringBuilder sb = new StringBuilder();
+        appendKey(query, sb);
+        return sb.toString();
+    }
+
+    private static void appendKey(Query query, StringBuilder sb) {
+        if (query instanceof Query.Term) {
+            Query.Term term = (Query.Term) query;
+            sb.append('t');
+            appendString(term.name, sb);
+            appendString(term.value, sb);
+        } else if (query instanceof Query.Word) {
+            sb.append('w');
+            appendString(((Query.Word) query).prefix, sb);
+        } else if (query instanceof Query.Not) {
+            sb.append('!');
+            appendKey(((Query.Not) query).child, sb);
+        } else {
+            boolean and = query instanceof Query.And;
+            List<Query> children = and ? ((Query.And) query).children : ((Query.Or) query).children;
+            List<String> keys = new ArrayList<>(children.size());
+            for (Query child : children) {
+                keys.add(key(child));
+            }
+            Collections.sort(keys);
+            sb.append(and ? '&' : '|').append(keys.size()).append('(');
+            for (String key : keys) {
+                sb.append(key);
+            }
+            sb.append(')');
+        }
+    }
+
+    /**
+     * Length-prefixed, so values holding any character cannot run together.
+     */
+    private static void appendString(String text, StringBuilder sb) {
+        String folded = text.toLowerCase(Locale.ROOT);
+        sb.append(folded.length()).append(':').append(folded);
+    }
+
+    private static void collect(Query query, Cached entry) {
+        if (query instanceof Query.Term) {
+            Query.Term term = (Query.Term) query;
+            entry.terms.add(TagIndex.key(term.name, term.value));
+        } else if (query instanceof Query.Word) {
+            entry.prefixes.add(((Query.Word) query).prefix.toLowerCase(Locale.ROOT));
+        } else if (query instanceof Query.Not) {
+            entry.negates = true;
+            collect(((Query.Not) query).child, entry);
+        } else {
+            List<Query> children = query instanceof Query.And
+                    ? ((Query.And) query).children : ((Query.Or) query).children;
+            for (Query child : children) {
+                collect(child, entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.softmeth.androidphotos.search;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses search text such as
+ * {@code person:alice AND (location:nyc OR location:"new york")}.
+ *
+ * <pre>
+ * query  := or
+ * or     := and ("OR" and)*
+ * and    := unary (["AND"] unary)*      terms next to each other are ANDed
+ * unary  := "NOT" unary | "(" or ")" | name ":" value | value
+ * value  := word | "quoted text"         \" inside quotes for a quote
+ * </pre>
+ *
+ * A value on its own is free text: it matches any tag value starting
+ * with it, so results can follow along while a word is being typed.
+ *
+ * Operators are case-insensitive. NOT binds tighter than AND, and AND
+ * tighter than OR. Nested groups of the same kind are flattened, so
+ * {@code a AND (b AND c)} becomes one AND of three terms.
+ */
+public final class QueryParser {
+    private final String text;
+    private int pos;
+
+    private QueryParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @throws ParseException with the offset of the first character that
+     *         does not fit
+     */
+    public static Query parse(String text) throws ParseException {
+        QueryParser parser = new QueryParser(text);
+        parser.skipSpace();
+        if (parser.atEnd()) {
+            throw new ParseException("Empty query", 0);
+        }
+        Query query = parser.parseOr();
+        parser.skipSpace();
+        if (!parser.atEnd()) {
+            throw parser.error("Unexpected '" + parser.text.charAt(parser.pos) + "'");
+        }
+        return query;
+    }
+
+    private Query parseOr() throws ParseException {
+        List<Query> children = new ArrayList<>();
+        add(children, parseAnd(), Query.Or.class);
+        while (keyword("OR")) {
+            add(children, parseAnd(), Query.Or.class);
+        }
+        return children.size() == 1 ? children.get(0) : new Query.Or(children);
+    }
+
+    private Query parseAnd() throws ParseException {
+        List<Query> children = new ArrayList<>();
+        add(children, parseUnary(), Query.And.class);
+        while (true) {
+            if (keyword("AND")) {
+                add(children, parseUnary(), Query.And.class);
+            } else if (startsUnary()) {
+                add(children, parseUnary(), Query.And.class);
+            } else {
+                break;
+            }
+        }
+        return children.size() == 1 ? children.get(0) : new Query.And(children);
+    }
+
+    private Query parseUnary() throws ParseException {
+        skipSpace();
+        if (keyword("NOT")) {
+            Query child = parseUnary();
+            // NOT NOT x is x
+            return child instanceof Query.Not ? ((Query.Not) child).child : new Query.Not(child);
+        }
+        int start = pos;
+        if (atEnd() || keyword("AND") || keyword("OR")) {
+            pos = start;
+            throw error("Expected a term");
+        }
+        if (text.charAt(pos) == '(') {
+            pos++;
+            Query inner = parseOr();
+            skipSpace();
+            if (atEnd() || text.charAt(pos) != ')') {
+                throw error("Missing ')'");
+            }
+            pos++;
+            return inner;
+        }
+        if (text.charAt(pos) == '"') {
+            String words = quoted();
+            if (words.isEmpty()) {
+                throw error("Empty quotes");
+            }
+            return new Query.Word(words);
+        }
+        String name = word();
+        if (name.isEmpty()) {
+            throw error("Expected a term");
+        }
+        if (atEnd() || text.charAt(pos) != ':') {
+            return new Query.Word(name);
+        }
+        pos++;
+        String value = atEnd() || text.charAt(pos) != '"' ? word() : quoted();
+        if (value.isEmpty()) {
+            throw error("Missing value for " + name);
+        }
+        return new Query.Term(name, value);
+    }
+
+    private static void add(List<Query> children, Query child, Class<? extends Query> kind) {
+        if (kind == Query.And.class && child instanceof Query.And) {
+            children.addAll(((Query.And) child).children);
+        } else if (kind == Query.Or.class && child instanceof Query.Or) {
+            children.addAll(((Query.Or) child).children);
+        } else {
+            children.add(child);
+        }
+    }
+
+    /**
+     * True if the next token can begin another operand of an implicit AND.
+     */
+    private boolean startsUnary() {
+        skipSpace();
+        if (atEnd() || text.charAt(pos) == ')') {
+            return false;
+        }
+        int save = pos;
+        boolean isOr = keyword("OR");
+        pos = save;
+        return !isOr;
+    }
+
+    /**
+     * Consumes the keyword if it comes next as a whole word.
+     */
+    private boolean keyword(String keyword) {
+        skipSpace();
+        int end = pos + keyword.length();
+        if (end > text.length() || !text.regionMatches(true, pos, keyword, 0, keyword.length())) {
+            return false;
+        }
+        if (end < text.length()) {
+            char next = text.charAt(end);
+            // Part of a longer word such as "order", or a tag type called "not"
+            if (!isDelimiter(next) || next == ':') {
+                return false;
+            }
+        }
+        pos = end;
+        return true;
+    }
+
+    private String word() {
+        int start = pos;
+        while (!atEnd() && !isDelimiter(text.charAt(pos))) {
+            pos++;
+        }
+        return text.substring(start, pos);
+    }
+
+    private String quoted() throws ParseException {
+        int start = pos;
+        pos++;  // Opening quote
+        StringBuilder sb = new StringBuilder();
+        while (!atEnd()) {
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return sb.toString().trim();
+            }
+            if (c == '\\' && !atEnd()) {
+                c = text.charAt(pos++);
+            }
+            sb.append(c);
+        }
+        throw new ParseException("Missing closing quote", start);
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == ':';
+    }
+
+    private void skipSpace() {
+        while (!atEnd() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private boolean atEnd() {
+        return pos >= text.length();
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message, pos);
+    }
+}
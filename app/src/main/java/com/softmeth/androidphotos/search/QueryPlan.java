@@ -0,0 +1,220 @@
+package com.softmeth.androidphotos.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A {@link Query} compiled against a {@link TagIndex} for running.
+ *
+ * Compiling looks every term up once and estimates how many photos each
+ * node can match: a term knows its exact count, an AND at most its
+ * smallest operand, an OR at most the sum of its operands. AND operands
+ * are then run smallest first so every intersection stays small, and
+ * evaluation stops as soon as a running result is empty. An AND with an
+ * operand that cannot match is known to be empty without running
+ * anything. NOT operands of an AND are subtracted from the result
+ * instead of being expanded against every photo.
+ *
+ * A plan reads the index when it runs, so compile and run it while holding
+ * the index's lock; {@link TagIndex#search} does both.
+ */
+public final class QueryPlan {
+    private static final PostingList EMPTY = new PostingList();
+    private static final Comparator<Node> BY_ESTIMATE =
+            (a, b) -> Integer.compare(a.estimate, b.estimate);
+
+    private abstract static class Node {
+        final int estimate;  // Upper bound on the number of matches
+
+        Node(int estimate) {
+            this.estimate = estimate;
+        }
+
+        abstract PostingList run();
+    }
+
+    private static final class TermNode extends Node {
+        final Query term;  // A Term or a Word
+        final PostingList ids;
+
+        TermNode(Query term, PostingList ids) {
+            super(ids.size());
+            this.term = term;
+            this.ids = ids;
+        }
+
+        @Override
+        PostingList run() {
+            return ids;
+        }
+
+        @Override
+        public String toString() {
+            return term + "[" + estimate + "]";
+        }
+    }
+
+    private static final class AndNode extends Node {
+        final List<Node> include;  // Smallest estimate first
+        final List<Node> exclude;  // Largest estimate first
+        final PostingList all;     // Starting point if nothing is included
+
+        AndNode(List<Node> include, List<Node> exclude, PostingList all) {
+            super(include.isEmpty() ? all.size() : include.get(0).estimate);
+            this.include = include;
+            this.exclude = exclude;
+            this.all = all;
+        }
+
+        @Override
+        PostingList run() {
+            if (estimate == 0) {
+                return EMPTY;
+            }
+            PostingList result = include.isEmpty() ? all : include.get(0).run();
+            for (int i = 1; i < include.size() && !result.isEmpty(); i++) {
+                checkInterrupted();
+                result = PostingList.intersect(result, include.get(i).run());
+            }
+            for (int i = 0; i < exclude.size() && !result.isEmpty(); i++) {
+                checkInterrupted();
+                result = PostingList.difference(result, exclude.get(i).run());
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("AND[").append(estimate).append("](");
+            String separator = "";
+            for (Node node : include) {
+                sb.append(separator).append(node);
+                separator = ", ";
+            }
+            for (Node node : exclude) {
+                sb.append(separator).append("-").append(node);
+                separator = ", ";
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    private static final class OrNode extends Node {
+        final List<Node> children;  // Only those that can match, smallest first
+
+        OrNode(List<Node> children, int estimate) {
+            super(estimate);
+            this.children = children;
+        }
+
+        @Override
+        PostingList run() {
+            PostingList result = EMPTY;
+            for (Node child : children) {
+                checkInterrupted();
+                result = PostingList.union(result, child.run());
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("OR[").append(estimate).append("](");
+            for (int i = 0; i < children.size(); i++) {
+                sb.append(i > 0 ? ", " : "").append(children.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    private final Node root;
+
+    private QueryPlan(Node root) {
+        this.root = root;
+    }
+
+    public static QueryPlan compile(Query query, TagIndex index) {
+        return new QueryPlan(compile(query, index.allPhotos(), index));
+    }
+
+    /**
+     * Ids of the matching photos, in increasing order. The returned list
+     * must not be modified.
+     *
+     * @throws CancellationException if the thread is interrupted, checked
+     *         before each step
+     */
+    public PostingList execute() {
+        return root.run();
+    }
+
+    /**
+     * Upper bound on the number of matches, known without running the plan.
+     */
+    public int estimate() {
+        return root.estimate;
+    }
+
+    /**
+     * The plan in evaluation order with its estimates, for debugging.
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * Stops a search whose thread was interrupted, e.g. by a newer search
+     * cancelling it. The interrupt stays set for the caller to see.
+     */
+    static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Search interrupted");
+        }
+    }
+
+    private static Node compile(Query query, PostingList all, TagIndex index) {
+        checkInterrupted();
+        if (query instanceof Query.Term) {
+            Query.Term term = (Query.Term) query;
+            return new TermNode(term, index.lookup(term.name, term.value));
+        }
+        if (query instanceof Query.Word) {
+            return new TermNode(query, index.lookupPrefix(((Query.Word) query).prefix));
+        }
+        if (query instanceof Query.Not) {
+            // A lone NOT is an AND that starts from every photo
+            return new AndNode(Collections.emptyList(),
+                    Collections.singletonList(compile(((Query.Not) query).child, all, index)), all);
+        }
+        if (query instanceof Query.And) {
+            List<Node> include = new ArrayList<>();
+            List<Node> exclude = new ArrayList<>();
+            for (Query child : ((Query.And) query).children) {
+                if (child instanceof Query.Not) {
+                    exclude.add(compile(((Query.Not) child).child, all, index));
+                } else {
+                    include.add(compile(child, all, index));
+                }
+            }
+            include.sort(BY_ESTIMATE);
+            // Subtracting the largest first shrinks the result fastest
+            exclude.sort(BY_ESTIMATE.reversed());
+            return new AndNode(include, exclude, all);
+        }
+        List<Node> children = new ArrayList<>();
+        long estimate = 0;
+        for (Query child : ((Query.Or) query).children) {
+            Node node = compile(child, all, index);
+            if (node.estimate > 0) {
+                children.add(node);
+                estimate += node.estimate;
+            }
+        }
+        children.sort(BY_ESTIMATE);
+        return new OrNode(children, (int) Math.min(estimate, all.size()));
+    }
+}
@@ -0,0 +1,271 @@
+package com.softmeth.androidphotos.search;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+import com.softmeth.androidphotos.models.Tag;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Inverted index from a case-folded (tag name, tag value) pair to the ids of
+ * the photos carrying that tag. AND searches intersect posting lists and OR
+ * searches union them, instead of scanning every photo.
+ *
+ * Each Photo object gets its own id; the same picture stored in two albums
+ * is two photos with separate tags. The index is kept up to date by
+ * {@link com.softmeth.androidphotos.data.AlbumRepository}.
+ *
+ * It also keeps a {@link TagValueTrie} per tag type for autocompleting
+ * tag values in the search dialog.
+ *
+ * Every edit bumps {@link #getVersion()}. Recent {@link #search} results
+ * are kept in a {@link QueryCache} and reused until an edit touches a tag
+ * they depend on.
+ *
+ * Edits come from the UI thread while searches run in the background, so
+ * the public methods are synchronized. Posting lists handed out are live:
+ * read them only while holding the index's lock, or use {@link #search}.
+ */
+public class TagIndex {
+    private static final PostingList EMPTY = new PostingList();
+
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final Map<Photo, Integer> ids = new IdentityHashMap<>();
+    private final List<Photo> photos = new ArrayList<>();  // id -> photo, null once removed
+    private final PostingList live = new PostingList();  // Ids not removed, for NOT
+    private final Map<String, TagValueTrie> values = new HashMap<>();  // guarded by itself
+    private final QueryCache cache = new QueryCache();
+    private long version;
+
+    public TagIndex(List<Album> albums) {
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                addPhoto(photo);
+            }
+        }
+    }
+
+    public synchronized void addPhoto(Photo photo) {
+        if (ids.containsKey(photo)) {
+            return;
+        }
+        int id = photos.size();
+        photos.add(photo);
+        ids.put(photo, id);
+        live.add(id);
+        List<Tag> tags = photo.getTags();
+        for (Tag tag : tags) {
+            posting(tag.getKey(), true).add(id);
+            valuesOf(tag.getName(), true).add(tag.getValue());
+        }
+        cache.photoChanged(tags, ++version);
+    }
+
+    public synchronized void removePhoto(Photo photo) {
+        Integer id = ids.remove(photo);
+        if (id == null) {
+            return;
+        }
+        photos.set(id, null);
+        live.remove(id);
+        List<Tag> tags = photo.getTags();
+        for (Tag tag : tags) {
+            removeFromPosting(tag.getKey(), id);
+            removeValue(tag.getName(), tag.getValue());
+        }
+        cache.photoChanged(tags, ++version);
+    }
+
+    public synchronized void addTag(Photo photo, String tagName, String tagValue) {
+        Integer id = ids.get(photo);
+        if (id != null) {
+            posting(key(tagName, tagValue), true).add(id);
+            valuesOf(tagName, true).add(tagValue);
+            cache.tagChanged(tagName, tagValue, ++version);
+        }
+    }
+
+    public synchronized void removeTag(Photo photo, String tagName, String tagValue) {
+        Integer id = ids.get(photo);
+        if (id != null) {
+            removeFromPosting(key(tagName, tagValue), id);
+            removeValue(tagName, tagValue);
+            cache.tagChanged(tagName, tagValue, ++version);
+        }
+    }
+
+    /**
+     * Number of edits made to the index so far. Only ever goes up.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Values of the given tag type starting with the prefix, most used first.
+     * Safe to call from a background filter thread.
+     */
+    public List<String> complete(String tagName, String prefix, int limit) {
+        TagValueTrie trie = valuesOf(tagName, false);
+        return trie != null ? trie.complete(prefix, limit) : new ArrayList<>();
+    }
+
+    /**
+     * Ids of photos tagged with the given name and value, ignoring case.
+     * The returned list must not be modified.
+     */
+    public synchronized PostingList lookup(String tagName, String tagValue) {
+        PostingList list = posting(key(tagName, tagValue), false);
+        return list != null ? list : EMPTY;
+    }
+
+    /**
+     * Ids of photos with a tag value of any type starting with the prefix,
+     * ignoring case. Every matching value is looked at, so a short prefix
+     * can be slow; see {@link #search} for stopping it.
+     * The returned list must not be modified.
+     */
+    public synchronized PostingList lookupPrefix(String prefix) {
+        List<String> names;
+        synchronized (values) {
+            names = new ArrayList<>(values.keySet());
+        }
+        List<PostingList> lists = new ArrayList<>();
+        for (String name : names) {
+            for (String value : valuesOf(name, false).valuesWithPrefix(prefix)) {
+                QueryPlan.checkInterrupted();
+                lists.add(lookup(name, value));
+            }
+        }
+        return PostingList.unionAll(lists);
+    }
+
+    /**
+     * Runs the query and resolves the matches to photos as one step, so no
+     * edit can land halfway through. A query seen recently whose tags have
+     * not been edited since is answered from the cache. Safe to call from
+     * any thread.
+     *
+     * @throws CancellationException if the calling thread is interrupted;
+     *         checked between the steps of the plan, so a search that is no
+     *         longer wanted gives up the lock soon after
+     */
+    public synchronized List<Photo> search(Query query) {
+        String key = QueryCache.key(query);
+        PostingList matches = cache.get(key, version);
+        if (matches == null) {
+            // Copy: a single-term result is the index's own posting list
+            matches = QueryPlan.compile(query, this).execute().copy();
+            cache.put(key, query, matches, version);
+        }
+        return toPhotos(matches);
+    }
+
+    /**
+     * Ids of photos that carry every one of the tags.
+     * Starts from the rarest tag so the intersections stay small.
+     */
+    public synchronized PostingList matchAll(List<Tag> terms) {
+        if (terms.isEmpty()) {
+            return EMPTY;
+        }
+        List<PostingList> lists = new ArrayList<>(terms.size());
+        for (Tag term : terms) {
+            PostingList list = lookup(term.getName(), term.getValue());
+            if (list.isEmpty()) {
+                return EMPTY;
+            }
+            lists.add(list);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        PostingList result = lists.get(0);
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result = PostingList.intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Ids of photos that carry at least one of the tags.
+     */
+    public synchronized PostingList matchAny(List<Tag> terms) {
+        PostingList result = EMPTY;
+        for (Tag term : terms) {
+            result = PostingList.union(result, lookup(term.getName(), term.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Ids of every photo in the index. The returned list must not be modified.
+     */
+    public synchronized PostingList allPhotos() {
+        return live;
+    }
+
+    public synchronized Photo getPhoto(int id) {
+        return photos.get(id);
+    }
+
+    /**
+     * Resolves ids to photos in id order, keeping one photo per URI.
+     */
+    public synchronized List<Photo> toPhotos(PostingList matches) {
+        List<Photo> result = new ArrayList<>(matches.size());
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < matches.size(); i++) {
+            Photo photo = photos.get(matches.get(i));
+            if (photo != null && seen.add(photo.getUriString())) {
+                result.add(photo);
+            }
+        }
+        return result;
+    }
+
+    static String key(String tagName, String tagValue) {
+        return Tag.key(tagName, tagValue);
+    }
+
+    private PostingList posting(String key, boolean create) {
+        PostingList list = postings.get(key);
+        if (list == null && create) {
+            list = new PostingList();
+            postings.put(key, list);
+        }
+        return list;
+    }
+
+    private TagValueTrie valuesOf(String tagName, boolean create) {
+        String name = tagName.toLowerCase(Locale.ROOT);
+        synchronized (values) {
+            TagValueTrie trie = values.get(name);
+            if (trie == null && create) {
+                trie = new TagValueTrie();
+                values.put(name, trie);
+            }
+            return trie;
+        }
+    }
+
+    private void removeValue(String tagName, String tagValue) {
+        TagValueTrie trie = valuesOf(tagName, false);
+        if (trie != null) {
+            trie.remove(tagValue);
+        }
+    }
+
+    private void removeFromPosting(String key, int id) {
+        PostingList list = postings.get(key);
+        if (list != null && list.remove(id) && list.isEmpty()) {
+            postings.remove(key);
+        }
+    }
+}
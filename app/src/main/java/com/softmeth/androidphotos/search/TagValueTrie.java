@@ -0,0 +1,228 @@
+package com.softmeth.androidphotos.search;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Prefix trie over the distinct values of one tag type, with a usage count
+ * per value. Matching ignores case; suggestions keep the casing the value
+ * was first entered with and come back most-used first.
+ *
+ * Every node also records the highest count anywhere below it, so a lookup
+ * only walks the branches that can still make the top N instead of the
+ * whole subtree under the prefix.
+ *
+ * Methods are synchronized because suggestions are computed on the
+ * AutoCompleteTextView filter thread while edits happen on the UI thread.
+ */
+public class TagValueTrie {
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        String value;  // display form, set when a value ends here
+        int count;
+        int best;  // highest count in this subtree, including this node
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node node = new Node();
+            int n = keys.length;
+            keys = Arrays.copyOf(keys, n + 1);
+            children = Arrays.copyOf(children, n + 1);
+            keys[n] = c;
+            children[n] = node;
+            return node;
+        }
+
+        void removeChild(Node node) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == node) {
+                    int n = keys.length - 1;
+                    keys[i] = keys[n];
+                    children[i] = children[n];
+                    keys = Arrays.copyOf(keys, n);
+                    children = Arrays.copyOf(children, n);
+                    return;
+                }
+            }
+        }
+
+        void updateBest() {
+            int max = count;
+            for (Node child : children) {
+                max = Math.max(max, child.best);
+            }
+            best = max;
+        }
+    }
+
+    /**
+     * Queue entry during a lookup: either a subtree still to explore or a
+     * value ready to be returned.
+     */
+    private static final class Candidate {
+        final Node node;
+        final boolean isValue;
+
+        Candidate(Node node, boolean isValue) {
+            this.node = node;
+            this.isValue = isValue;
+        }
+
+        int rank() {
+            return isValue ? node.count : node.best;
+        }
+    }
+
+    private final Node root = new Node();
+    private int distinctValues;
+
+    /**
+     * Counts one more use of the value.
+     */
+    public synchronized void add(String value) {
+        Node[] path = path(value.toLowerCase(Locale.ROOT), true);
+        Node node = path[path.length - 1];
+        if (node.count++ == 0) {
+            node.value = value;
+            distinctValues++;
+        }
+        for (Node n : path) {
+            n.best = Math.max(n.best, node.count);
+        }
+    }
+
+    /**
+     * Counts one less use of the value, dropping it when no photo uses it.
+     */
+    public synchronized void remove(String value) {
+        Node[] path = path(value.toLowerCase(Locale.ROOT), false);
+        if (path == null) {
+            return;
+        }
+        int last = path.length - 1;
+        Node node = path[last];
+        if (node.count == 0) {
+            return;
+        }
+        if (--node.count == 0) {
+            node.value = null;
+            distinctValues--;
+        }
+        for (int i = last; i >= 0; i--) {
+            Node current = path[i];
+            if (i > 0 && current.count == 0 && current.keys.length == 0) {
+                // Prune nodes that no longer lead to any value
+                path[i - 1].removeChild(current);
+            } else {
+                current.updateBest();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return distinctValues;
+    }
+
+    /**
+     * Returns up to {@code limit} values starting with the prefix, most used
+     * first and alphabetical among equal counts.
+     */
+    public synchronized List<String> complete(String prefix, int limit) {
+        Node[] path = path(prefix.toLowerCase(Locale.ROOT), false);
+        if (path == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Highest rank first. On a tie, subtrees are expanded before values
+        // are emitted, so every value of that count is queued and the
+        // alphabetical tie-break below sees all of them.
+        PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> {
+            if (a.rank() != b.rank()) {
+                return Integer.compare(b.rank(), a.rank());
+            }
+            if (a.isValue != b.isValue) {
+                return a.isValue ? 1 : -1;
+            }
+            return a.isValue ? a.node.value.compareToIgnoreCase(b.node.value) : 0;
+        });
+        Node start = path[path.length - 1];
+        if (start.best > 0) {
+            queue.add(new Candidate(start, false));
+        }
+
+        List<String> result = new ArrayList<>(limit);
+        while (!queue.isEmpty() && result.size() < limit) {
+            Candidate candidate = queue.poll();
+            if (candidate.isValue) {
+                result.add(candidate.node.value);
+                continue;
+            }
+            Node node = candidate.node;
+            if (node.count > 0) {
+                queue.add(new Candidate(node, true));
+            }
+            for (Node child : node.children) {
+                queue.add(new Candidate(child, false));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Every value starting with the prefix, in no particular order.
+     */
+    public synchronized List<String> valuesWithPrefix(String prefix) {
+        Node[] path = path(prefix.toLowerCase(Locale.ROOT), false);
+        if (path == null) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(path[path.length - 1]);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.count > 0) {
+                result.add(node.value);
+            }
+            for (Node child : node.children) {
+                stack.push(child);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Nodes from the root to the end of the key, or null if the key is
+     * missing and {@code create} is false.
+     */
+    private Node[] path(String key, boolean create) {
+        Node[] path = new Node[key.length() + 1];
+        path[0] = root;
+        for (int i = 0; i < key.length(); i++) {
+            Node next = path[i].child(key.charAt(i));
+            if (next == null) {
+                if (!create) {
+                    return null;
+                }
+                next = path[i].addChild(key.charAt(i));
+            }
+            path[i + 1] = next;
+        }
+        return path;
+    }
+}
@@ -0,0 +1,130 @@
+package com.softmeth.androidphotos.data;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares album segments with the Java serialization that albums.dat used,
+ * on a generated library shaped like a MediaStore one. Run main() from the
+ * IDE; {@link BinaryAlbumFormatTest} checks the size side on every build.
+ */
+public final class AlbumFormatBenchmark {
+    private static final int ALBUMS = 50;
+    private static final int PHOTOS_PER_ALBUM = 1000;
+    private static final int ROUNDS = 5;
+
+    private AlbumFormatBenchmark() {
+    }
+
+    /**
+     * Builds a seeded library: content:// URIs, camera file names, up to three
+     * people from 200 and a location from 50 on half the photos.
+     */
+    static List<Album> library(int albumCount, int photosPerAlbum, long seed) {
+        Random random = new Random(seed);
+        List<Album> albums = new ArrayList<>(albumCount);
+        int id = 0;
+        for (int a = 0; a < albumCount; a++) {
+            List<Photo> photos = new ArrayList<>(photosPerAlbum);
+            for (int p = 0; p < photosPerAlbum; p++) {
+                id++;
+                Photo photo = new Photo(
+                        "content://com.android.providers.media.documents/document/image%3A" + (100000 + id),
+                        String.format(Locale.ROOT, "IMG_2024%04d_%d.jpg", id % 10000, id));
+                int people = random.nextInt(4);
+                for (int t = 0; t < people; t++) {
+                    photo.addTag("person", "Person " + random.nextInt(200));
+                }
+                if (random.nextBoolean()) {
+                    photo.addTag("location", "Place " + random.nextInt(50));
+                }
+                photos.add(photo);
+            }
+            albums.add(new Album("Album " + a, photos));
+        }
+        return albums;
+    }
+
+    static byte[] serialize(List<Album> albums) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(albums));
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Album> deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (List<Album>) in.readObject();
+        }
+    }
+
+    static List<byte[]> writeSegments(List<Album> albums) throws IOException {
+        List<byte[]> segments = new ArrayList<>(albums.size());
+        for (Album album : albums) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            BinaryAlbumFormat.writeSegment(out, album.getPhotos());
+            out.flush();
+            segments.add(bytes.toByteArray());
+        }
+        return segments;
+    }
+
+    static long totalLength(List<byte[]> segments) {
+        long total = 0;
+        for (byte[] segment : segments) {
+            total += segment.length;
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Album> albums = library(ALBUMS, PHOTOS_PER_ALBUM, 1);
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            byte[] serialized = serialize(albums);
+            long serializeWrite = System.nanoTime() - start;
+            start = System.nanoTime();
+            int serializedPhotos = 0;
+            for (Album album : deserialize(serialized)) {
+                serializedPhotos += album.getPhotoCount();
+            }
+            long serializeRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<byte[]> segments = writeSegments(albums);
+            long binaryWrite = System.nanoTime() - start;
+            start = System.nanoTime();
+            int binaryPhotos = 0;
+            for (byte[] segment : segments) {
+                binaryPhotos += BinaryAlbumFormat.readSegment(ByteBuffer.wrap(segment)).size();
+            }
+            long binaryRead = System.nanoTime() - start;
+
+            if (serializedPhotos != binaryPhotos) {
+                throw new AssertionError(serializedPhotos + " != " + binaryPhotos);
+            }
+            long binaryLength = totalLength(segments);
+            System.out.printf(Locale.ROOT,
+                    "round %d: serialized %d bytes, write %d ms, read %d ms; "
+                            + "binary %d bytes, write %d ms, read %d ms; %.2fx smaller, %.2fx faster to read%n",
+                    round, serialized.length, serializeWrite / 1000000, serializeRead / 1000000,
+                    binaryLength, binaryWrite / 1000000, binaryRead / 1000000,
+                    (double) serialized.length / binaryLength, (double) serializeRead / binaryRead);
+        }
+    }
+}
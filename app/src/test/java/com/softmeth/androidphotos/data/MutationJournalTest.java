@@ -0,0 +1,177 @@
+package com.softmeth.androidphotos.data;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MutationJournalTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void replayAppliesRecordsInOrder() throws IOException {
+        Photo photo = new Photo("content://p/1", "one.jpg");
+        write(MutationJournal.Record.createAlbum("Trip"),
+                MutationJournal.Record.addPhoto("Trip", photo),
+                MutationJournal.Record.addTag("Trip", photo, "person", "Alice"),
+                MutationJournal.Record.renameAlbum("Trip", "Holiday"));
+
+        List<Album> albums = replay(new ArrayList<>(), 0);
+
+        assertEquals(1, albums.size());
+        Album album = albums.get(0);
+        assertEquals("Holiday", album.getName());
+        assertEquals(1, album.getPhotoCount());
+        assertTrue(album.getPhoto(0).hasTag("person", "alice"));
+    }
+
+    @Test
+    public void rotatedRecordsInTheSnapshotAreNotReplayed() throws IOException {
+        Photo photo = new Photo("content://p/1", "one.jpg");
+        MutationJournal journal = new MutationJournal(dir);
+        journal.replay(new ArrayList<>(), 0);
+        journal.append(MutationJournal.Record.createAlbum("A"));
+        journal.append(MutationJournal.Record.addPhoto("A", photo));
+        journal.append(MutationJournal.Record.renameAlbum("A", "B"));
+        journal.append(MutationJournal.Record.createAlbum("A"));
+        journal.sync();
+        journal.rotate(1);
+        journal.close();
+        // Snapshot 1 was saved, but the process died before discardRotated()
+        List<Album> snapshot = new ArrayList<>();
+        snapshot.add(new Album("B", new ArrayList<>(Arrays.asList(new Photo(photo)))));
+        snapshot.add(new Album("A"));
+
+        MutationJournal reopened = new MutationJournal(dir);
+        reopened.replay(snapshot, 1);
+
+        assertEquals(2, snapshot.size());
+        assertEquals(1, snapshot.get(0).getPhotoCount());
+        assertEquals(0, snapshot.get(1).getPhotoCount());
+        assertFalse(reopened.hasRotated());
+        reopened.close();
+    }
+
+    @Test
+    public void rotatedRecordsAfterFailedSnapshotAreReplayed() throws IOException {
+        MutationJournal journal = new MutationJournal(dir);
+        journal.replay(new ArrayList<>(), 0);
+        journal.append(MutationJournal.Record.createAlbum("A"));
+        journal.sync();
+        journal.rotate(1);
+        journal.append(MutationJournal.Record.createAlbum("B"));
+        journal.sync();
+        // Snapshot 1 failed; the next attempt folds the new records in
+        journal.rotate(1);
+        journal.append(MutationJournal.Record.createAlbum("C"));
+        journal.sync();
+        journal.close();
+
+        MutationJournal reopened = new MutationJournal(dir);
+        List<Album> albums = new ArrayList<>();
+        reopened.replay(albums, 0);
+
+        assertEquals(Arrays.asList("A", "B", "C"), names(albums));
+        assertTrue(reopened.hasRotated());
+        reopened.close();
+    }
+
+    @Test
+    public void pendingRotatedFileMovesToTheNextGeneration() throws IOException {
+        MutationJournal journal = new MutationJournal(dir);
+        journal.replay(new ArrayList<>(), 0);
+        journal.append(MutationJournal.Record.createAlbum("A"));
+        journal.sync();
+        journal.rotate(1);
+        journal.append(MutationJournal.Record.createAlbum("B"));
+        journal.sync();
+        // Snapshot 1 was saved by someone else meanwhile; ours becomes 2
+        journal.rotate(2);
+        journal.close();
+
+        List<Album> albums = new ArrayList<>();
+        new MutationJournal(dir).replay(albums, 1);
+
+        assertEquals(Arrays.asList("A", "B"), names(albums));
+    }
+
+    @Test
+    public void tornRecordIsCutOff() throws IOException {
+        write(MutationJournal.Record.createAlbum("A"), MutationJournal.Record.createAlbum("B"));
+        File file = new File(dir, MutationJournal.JOURNAL_FILE);
+        long validLength = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+
+        List<Album> albums = replay(new ArrayList<>(), 0);
+
+        assertEquals(Arrays.asList("A", "B"), names(albums));
+        assertEquals(validLength, file.length());
+    }
+
+    @Test
+    public void recordsMatchAlbumNamesExactly() {
+        List<Album> albums = new ArrayList<>();
+        MutationJournal.apply(albums, MutationJournal.Record.createAlbum("Trip"));
+        MutationJournal.apply(albums, MutationJournal.Record.addPhoto("trip", new Photo("content://p/1", "one.jpg")));
+        assertEquals(0, albums.get(0).getPhotoCount());
+
+        // A rename that only changes case is still a rename of the same album
+        MutationJournal.apply(albums, MutationJournal.Record.renameAlbum("Trip", "trip"));
+        assertEquals(Arrays.asList("trip"), names(albums));
+    }
+
+    private void write(MutationJournal.Record... records) throws IOException {
+        MutationJournal journal = new MutationJournal(dir);
+        journal.replay(new ArrayList<>(), 0);
+        for (MutationJournal.Record record : records) {
+            journal.append(record);
+        }
+        journal.sync();
+        journal.close();
+    }
+
+    private List<Album> replay(List<Album> albums, long snapshotGeneration) throws IOException {
+        MutationJournal journal = new MutationJournal(dir);
+        journal.replay(albums, snapshotGeneration);
+        journal.close();
+        return albums;
+    }
+
+    private static List<String> names(List<Album> albums) {
+        List<String> names = new ArrayList<>();
+        for (Album album : albums) {
+            names.add(album.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,155 @@
+package com.softmeth.androidphotos.data;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SectionedAlbumStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("albums").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void loadReturnsUnloadedAlbumsWithCounts() throws IOException {
+        SectionedAlbumStore store = new SectionedAlbumStore(dir);
+        assertFalse(store.exists());
+        store.save(Arrays.asList(album("Trip", 3), album("Empty", 0)));
+
+        SectionedAlbumStore reopened = new SectionedAlbumStore(dir);
+        assertTrue(reopened.exists());
+        List<Album> albums = reopened.load();
+
+        assertEquals(2, albums.size());
+        assertEquals("Trip", albums.get(0).getName());
+        assertEquals(3, albums.get(0).getPhotoCount());
+        assertFalse(albums.get(0).isLoaded());
+        assertEquals(0, albums.get(1).getPhotoCount());
+    }
+
+    @Test
+    public void segmentsDecodeOnFirstUse() throws IOException {
+        Album trip = album("Trip", 3);
+        trip.getPhoto(1).addTag("person", "Alice");
+        new SectionedAlbumStore(dir).save(Arrays.asList(album("Other", 2), trip));
+
+        List<Album> albums = new SectionedAlbumStore(dir).load();
+        Album loaded = albums.get(1);
+
+        assertEquals("content://Trip/1", loaded.getPhoto(1).getUriString());
+        assertTrue(loaded.isLoaded());
+        assertTrue(loaded.getPhoto(1).hasTag("person", "alice"));
+        assertFalse(albums.get(0).isLoaded());
+    }
+
+    @Test
+    public void unloadedSegmentsAreCopiedAcrossSaves() throws IOException {
+        new SectionedAlbumStore(dir).save(Arrays.asList(album("A", 2), album("B", 3), album("C", 1)));
+        SectionedAlbumStore store = new SectionedAlbumStore(dir);
+        List<Album> albums = store.load();
+
+        // Edit only B; A and C go through as raw bytes at new offsets
+        albums.get(1).addPhoto(new Photo("content://B/new", "new.jpg"));
+        store.save(Arrays.asList(albums.get(1), albums.get(2), albums.get(0)));
+        assertFalse(albums.get(0).isLoaded());
+        assertFalse(albums.get(2).isLoaded());
+
+        // The albums held since before the save still read their own photos
+        assertEquals("content://A/1", albums.get(0).getPhoto(1).getUriString());
+        assertEquals("content://C/0", albums.get(2).getPhoto(0).getUriString());
+
+        List<Album> reloaded = new SectionedAlbumStore(dir).load();
+        assertEquals(Arrays.asList("B", "C", "A"), names(reloaded));
+        assertEquals(4, reloaded.get(0).getPhotoCount());
+        assertEquals("content://B/new", reloaded.get(0).getPhoto(3).getUriString());
+        assertEquals("content://C/0", reloaded.get(1).getPhoto(0).getUriString());
+        assertEquals("content://A/1", reloaded.get(2).getPhoto(1).getUriString());
+    }
+
+    @Test
+    public void eachSaveIsANewGenerationAndDropsTheOldSegments() throws IOException {
+        SectionedAlbumStore store = new SectionedAlbumStore(dir);
+        assertEquals(0, store.getGeneration());
+        store.save(Arrays.asList(album("A", 1)));
+        assertEquals(1, store.getGeneration());
+        store.save(Arrays.asList(album("A", 2)));
+        assertEquals(2, store.getGeneration());
+
+        assertEquals(Arrays.asList("albums.2.seg", SectionedAlbumStore.MANIFEST_FILE), files());
+        assertEquals(2, new SectionedAlbumStore(dir).load().get(0).getPhotoCount());
+    }
+
+    @Test
+    public void loadDeletesSegmentsLeftByACrashedSave() throws IOException {
+        new SectionedAlbumStore(dir).save(Arrays.asList(album("A", 1)));
+        // Written by a save that died before its manifest replaced ours
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "albums.2.seg"))) {
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        SectionedAlbumStore store = new SectionedAlbumStore(dir);
+        List<Album> albums = store.load();
+
+        assertEquals(1, store.getGeneration());
+        assertEquals(Arrays.asList("albums.1.seg", SectionedAlbumStore.MANIFEST_FILE), files());
+        assertEquals(1, albums.get(0).getPhotoCount());
+        assertEquals("content://A/0", albums.get(0).getPhoto(0).getUriString());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(dir, SectionedAlbumStore.MANIFEST_FILE))) {
+            out.write(new byte[20]);
+        }
+
+        assertThrows(IOException.class, () -> new SectionedAlbumStore(dir).load());
+    }
+
+    private static Album album(String name, int photoCount) {
+        List<Photo> photos = new ArrayList<>();
+        for (int i = 0; i < photoCount; i++) {
+            photos.add(new Photo("content://" + name + "/" + i, i + ".jpg"));
+        }
+        return new Album(name, photos);
+    }
+
+    private List<String> files() {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static List<String> names(List<Album> albums) {
+        List<String> names = new ArrayList<>();
+        for (Album album : albums) {
+            names.add(album.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,99 @@
+package com.softmeth.androidphotos.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class HammingIndexTest {
+
+    @Test
+    public void findsHashesWithinTheDistance() {
+        HammingIndex index = new HammingIndex();
+        long hash = 0x0123456789abcdefL;
+        index.add(1, hash);
+        index.add(2, hash ^ 0b111);               // 3 bits off, all in one chunk
+        index.add(3, hash ^ 0x0001000100010001L);  // 4 bits off, one per chunk
+        index.add(4, ~hash);
+
+        assertEquals(ids(1), toSet(index.search(hash, 0)));
+        assertEquals(ids(1, 2), toSet(index.search(hash, 3)));
+        assertEquals(ids(1, 2, 3), toSet(index.search(hash, 4)));
+        assertEquals(ids(4), toSet(index.search(~hash, 8)));
+    }
+
+    @Test
+    public void addReplacesAndRemoveForgets() {
+        HammingIndex index = new HammingIndex();
+        index.add(0, 5L);
+        index.add(40, 5L);  // Past the initial capacity
+        assertEquals(2, index.size());
+
+        index.add(0, -1L);
+        assertEquals(2, index.size());
+        assertEquals(ids(40), toSet(index.search(5L, 0)));
+        assertEquals(ids(0), toSet(index.search(-1L, 0)));
+
+        assertTrue(index.remove(40));
+        assertFalse(index.remove(40));
+        assertFalse(index.remove(1000));
+        assertEquals(1, index.size());
+        assertTrue(index.search(5L, 8).isEmpty());
+    }
+
+    @Test
+    public void searchMatchesBruteForce() {
+        Random random = new Random(3);
+        HammingIndex index = new HammingIndex();
+        long[] hashes = new long[2000];
+        boolean[] present = new boolean[hashes.length];
+        long base = random.nextLong();
+        for (int id = 0; id < hashes.length; id++) {
+            // Near copies of a few pictures, plus unrelated ones
+            hashes[id] = random.nextBoolean() ? flip(random, base, random.nextInt(12)) : random.nextLong();
+            index.add(id, hashes[id]);
+            present[id] = true;
+        }
+        for (int id = 0; id < hashes.length; id += 7) {
+            index.remove(id);
+            present[id] = false;
+        }
+
+        for (int round = 0; round < 200; round++) {
+            long query = round % 2 == 0 ? flip(random, base, random.nextInt(6)) : random.nextLong();
+            int maxDistance = random.nextInt(13);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int id = 0; id < hashes.length; id++) {
+                if (present[id] && Long.bitCount(hashes[id] ^ query) <= maxDistance) {
+                    expected.add(id);
+                }
+            }
+            assertEquals(expected, toSet(index.search(query, maxDistance)));
+        }
+    }
+
+    private static long flip(Random random, long hash, int bits) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+
+    private static TreeSet<Integer> ids(Integer... ids) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private static TreeSet<Integer> toSet(PostingList list) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int i = 0; i < list.size(); i++) {
+            set.add(list.get(i));
+        }
+        return set;
+    }
+}
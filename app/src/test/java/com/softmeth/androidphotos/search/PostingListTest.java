@@ -0,0 +1,153 @@
+package com.softmeth.androidphotos.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class PostingListTest {
+
+    @Test
+    public void addKeepsIdsSortedAndUnique() {
+        PostingList list = of(5, 1, 9, 1, 3);
+
+        assertArrayEquals(new int[] {1, 3, 5, 9}, toArray(list));
+        assertFalse(list.add(3));
+        assertTrue(list.contains(9));
+        assertFalse(list.contains(4));
+    }
+
+    @Test
+    public void removeDropsOnlyThatId() {
+        PostingList list = of(1, 2, 3);
+
+        assertTrue(list.remove(2));
+        assertFalse(list.remove(2));
+        assertArrayEquals(new int[] {1, 3}, toArray(list));
+    }
+
+    @Test
+    public void intersectMergesListsOfSimilarSize() {
+        PostingList a = of(1, 2, 4, 6, 8);
+        PostingList b = of(2, 3, 4, 8, 9);
+
+        assertArrayEquals(new int[] {2, 4, 8}, toArray(PostingList.intersect(a, b)));
+        assertArrayEquals(new int[] {2, 4, 8}, toArray(PostingList.intersect(b, a)));
+    }
+
+    @Test
+    public void intersectProbesTheLargerListWhenSkewed() {
+        PostingList large = new PostingList();
+        for (int i = 0; i < 1000; i++) {
+            large.add(i * 2);
+        }
+        PostingList small = of(0, 5, 1998, 2000);
+
+        assertArrayEquals(new int[] {0, 1998}, toArray(PostingList.intersect(small, large)));
+        assertArrayEquals(new int[] {0, 1998}, toArray(PostingList.intersect(large, small)));
+        assertTrue(PostingList.intersect(new PostingList(), large).isEmpty());
+    }
+
+    @Test
+    public void setOperationsMatchBruteForce() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            // Sizes from equal to far apart, so both intersect paths run
+            TreeSet<Integer> a = randomSet(random, random.nextInt(40), 500);
+            TreeSet<Integer> b = randomSet(random, random.nextInt(round < 100 ? 40 : 400), 500);
+            PostingList pa = of(a);
+            PostingList pb = of(b);
+
+            TreeSet<Integer> both = new TreeSet<>(a);
+            both.retainAll(b);
+            TreeSet<Integer> either = new TreeSet<>(a);
+            either.addAll(b);
+            TreeSet<Integer> onlyA = new TreeSet<>(a);
+            onlyA.removeAll(b);
+
+            assertEquals(both, toSet(PostingList.intersect(pa, pb)));
+            assertEquals(either, toSet(PostingList.union(pa, pb)));
+            assertEquals(onlyA, toSet(PostingList.difference(pa, pb)));
+        }
+    }
+
+    @Test
+    public void differenceKeepsIdsMissingFromTheSecond() {
+        PostingList a = of(1, 2, 3, 4, 5);
+
+        assertArrayEquals(new int[] {1, 3, 5}, toArray(PostingList.difference(a, of(0, 2, 4, 6))));
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5}, toArray(PostingList.difference(a, new PostingList())));
+        assertTrue(PostingList.difference(a, a).isEmpty());
+    }
+
+    @Test
+    public void unionAllMergesAnyNumberOfLists() {
+        List<PostingList> lists = new ArrayList<>();
+        assertTrue(PostingList.unionAll(lists).isEmpty());
+
+        lists.add(of(3));
+        assertArrayEquals(new int[] {3}, toArray(PostingList.unionAll(lists)));
+
+        lists.add(of(1, 3));
+        lists.add(of(7));
+        lists.add(of(2, 7));
+        lists.add(of(1, 9));
+        assertArrayEquals(new int[] {1, 2, 3, 7, 9}, toArray(PostingList.unionAll(lists)));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        PostingList list = of(1, 2);
+        PostingList copy = list.copy();
+        list.add(3);
+
+        assertArrayEquals(new int[] {1, 2}, toArray(copy));
+    }
+
+    private static PostingList of(int... ids) {
+        PostingList list = new PostingList();
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static PostingList of(TreeSet<Integer> ids) {
+        PostingList list = new PostingList();
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static int[] toArray(PostingList list) {
+        int[] ids = new int[list.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = list.get(i);
+        }
+        return ids;
+    }
+
+    private static TreeSet<Integer> toSet(PostingList list) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int id : toArray(list)) {
+            set.add(id);
+        }
+        // Same text only if the list was sorted without duplicates
+        assertEquals(set.toString(), Arrays.toString(toArray(list)));
+        return set;
+    }
+
+    private static TreeSet<Integer> randomSet(Random random, int size, int bound) {
+        TreeSet<Integer> set = new TreeSet<>();
+        while (set.size() < size) {
+            set.add(random.nextInt(bound));
+        }
+        return set;
+    }
+}
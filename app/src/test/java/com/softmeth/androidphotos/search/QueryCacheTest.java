@@ -0,0 +1,162 @@
+package com.softmeth.androidphotos.search;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+import com.softmeth.androidphotos.models.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryCacheTest {
+    private QueryCache cache;
+    private long version;
+
+    @Before
+    public void setUp() {
+        cache = new QueryCache();
+        version = 0;
+    }
+
+    @Test
+    public void tagChangedDropsOnlyEntriesUsingTheTag() throws ParseException {
+        put("person:alice");
+        put("location:nyc");
+        put("person:alice OR location:paris");
+
+        cache.tagChanged("Person", "ALICE", ++version);
+
+        assertFalse(cached("person:alice"));
+        assertTrue(cached("location:nyc"));
+        assertFalse(cached("person:alice OR location:paris"));
+    }
+
+    @Test
+    public void photoChangedDropsEntriesUsingAnyOfItsTags() throws ParseException {
+        put("person:alice");
+        put("person:bob");
+        put("location:nyc");
+
+        cache.photoChanged(Arrays.asList(Tag.of("person", "Bob"), Tag.of("location", "NYC")), ++version);
+
+        assertTrue(cached("person:alice"));
+        assertFalse(cached("person:bob"));
+        assertFalse(cached("location:nyc"));
+    }
+
+    @Test
+    public void negatedQueriesDependOnEveryPhoto() throws ParseException {
+        put("NOT person:alice");
+        put("person:bob AND NOT person:alice");
+        put("person:carol");
+
+        // An untagged photo still changes what NOT matches
+        cache.photoChanged(Collections.emptyList(), ++version);
+
+        assertFalse(cached("NOT person:alice"));
+        assertFalse(cached("person:bob AND NOT person:alice"));
+        assertTrue(cached("person:carol"));
+    }
+
+    @Test
+    public void tagChangesOnlyReachNegatedQueriesThroughTheirTerms() throws ParseException {
+        put("NOT person:alice");
+
+        cache.tagChanged("person", "bob", ++version);
+        assertTrue(cached("NOT person:alice"));
+
+        cache.tagChanged("person", "alice", ++version);
+        assertFalse(cached("NOT person:alice"));
+    }
+
+    @Test
+    public void freeTextDependsOnValuesStartingWithIt() throws ParseException {
+        put("al");
+        put("person:bob");
+
+        cache.tagChanged("person", "Zoe", ++version);
+        assertTrue(cached("al"));
+
+        // Any tag type, any case
+        cache.tagChanged("location", "ALPS", ++version);
+        assertFalse(cached("al"));
+        assertTrue(cached("person:bob"));
+    }
+
+    @Test
+    public void missedVersionClearsEverything() throws ParseException {
+        put("person:alice");
+
+        version += 2;
+        cache.tagChanged("location", "nyc", version);
+
+        assertFalse(cached("person:alice"));
+    }
+
+    @Test
+    public void keyIgnoresCaseAndOperandOrder() throws ParseException {
+        assertEquals(QueryCache.key(QueryParser.parse("Person:Bob AND location:nyc")),
+                QueryCache.key(QueryParser.parse("location:NYC person:bob")));
+        assertEquals(QueryCache.key(QueryParser.parse("a OR b")),
+                QueryCache.key(QueryParser.parse("B OR A")));
+        assertNotEquals(QueryCache.key(QueryParser.parse("a OR b")),
+                QueryCache.key(QueryParser.parse("a AND b")));
+        assertNotEquals(QueryCache.key(QueryParser.parse("person:a")),
+                QueryCache.key(QueryParser.parse("a")));
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecentEntries() throws ParseException {
+        for (int i = 0; i <= QueryCache.CAPACITY; i++) {
+            put("person:p" + i);
+        }
+        assertEquals(QueryCache.CAPACITY, cache.size());
+        assertFalse(cached("person:p0"));
+        assertTrue(cached("person:p" + QueryCache.CAPACITY));
+    }
+
+    @Test
+    public void indexSearchSeesEditsAfterCaching() {
+        Photo first = photo(1, "person", "alice");
+        Photo second = photo(2, "person", "bob");
+        List<Album> albums = new ArrayList<>();
+        albums.add(new Album("A", new ArrayList<>(Arrays.asList(first, second))));
+        TagIndex index = new TagIndex(albums);
+        Query alice = new Query.Term("person", "Alice");
+        Query notAlice = new Query.Not(alice);
+
+        assertEquals(Arrays.asList(first), index.search(alice));
+        assertEquals(Arrays.asList(second), index.search(notAlice));
+
+        second.addTag("person", "alice");
+        index.addTag(second, "person", "alice");
+        assertEquals(Arrays.asList(first, second), index.search(alice));
+        assertEquals(Collections.emptyList(), index.search(notAlice));
+
+        Photo third = photo(3, "location", "nyc");
+        index.addPhoto(third);
+        assertEquals(Arrays.asList(third), index.search(notAlice));
+    }
+
+    private void put(String text) throws ParseException {
+        Query query = QueryParser.parse(text);
+        cache.put(QueryCache.key(query), query, new PostingList(), version);
+    }
+
+    private boolean cached(String text) throws ParseException {
+        return cache.get(QueryCache.key(QueryParser.parse(text)), version) != null;
+    }
+
+    private static Photo photo(int n, String tagName, String tagValue) {
+        Photo photo = new Photo("content://photos/" + n, n + ".jpg");
+        photo.addTag(tagName, tagValue);
+        return photo;
+    }
+}
@@ -0,0 +1,142 @@
+package com.softmeth.androidphotos.search;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+public class QueryParserTest {
+
+    @Test
+    public void andBindsTighterThanOr() throws ParseException {
+        Query query = QueryParser.parse("person:a OR person:b AND location:c");
+
+        assertTrue(query instanceof Query.Or);
+        Query.Or or = (Query.Or) query;
+        assertEquals(2, or.children.size());
+        assertTrue(or.children.get(0) instanceof Query.Term);
+        assertTrue(or.children.get(1) instanceof Query.And);
+        assertEquals("person:\"a\" OR (person:\"b\" AND location:\"c\")", query.toString());
+    }
+
+    @Test
+    public void adjacentTermsAreAnded() throws ParseException {
+        Query query = QueryParser.parse("person:a location:b");
+
+        assertTrue(query instanceof Query.And);
+        assertEquals(2, ((Query.And) query).children.size());
+        assertEquals(query.toString(), QueryParser.parse("person:a AND location:b").toString());
+    }
+
+    @Test
+    public void parenthesesOverridePrecedence() throws ParseException {
+        Query query = QueryParser.parse("(person:a OR person:b) location:c");
+
+        assertTrue(query instanceof Query.And);
+        assertTrue(((Query.And) query).children.get(0) instanceof Query.Or);
+    }
+
+    @Test
+    public void nestedGroupsOfTheSameKindAreFlattened() throws ParseException {
+        Query query = QueryParser.parse("person:a AND (person:b AND person:c)");
+
+        assertEquals(3, ((Query.And) query).children.size());
+    }
+
+    @Test
+    public void notBindsTighterThanAnd() throws ParseException {
+        Query query = QueryParser.parse("NOT person:a person:b");
+
+        Query.And and = (Query.And) query;
+        assertTrue(and.children.get(0) instanceof Query.Not);
+        assertTrue(and.children.get(1) instanceof Query.Term);
+    }
+
+    @Test
+    public void doubleNegationCancels() throws ParseException {
+        Query query = QueryParser.parse("NOT NOT person:a");
+        assertTrue(query instanceof Query.Term);
+
+        assertTrue(QueryParser.parse("NOT NOT NOT person:a") instanceof Query.Not);
+    }
+
+    @Test
+    public void keywordsIgnoreCaseButNotInsideWords() throws ParseException {
+        assertTrue(QueryParser.parse("person:a or person:b") instanceof Query.Or);
+        assertTrue(QueryParser.parse("not person:a") instanceof Query.Not);
+
+        // A tag type or value that only starts like a keyword
+        Query query = QueryParser.parse("not:x order:y");
+        Query.And and = (Query.And) query;
+        assertEquals("not", ((Query.Term) and.children.get(0)).name);
+        assertEquals("order", ((Query.Term) and.children.get(1)).name);
+    }
+
+    @Test
+    public void quotedValuesKeepSpacesAndEscapes() throws ParseException {
+        Query.Term term = (Query.Term) QueryParser.parse("location:\"new \\\"york\\\" city\"");
+
+        assertEquals("location", term.name);
+        assertEquals("new \"york\" city", term.value);
+    }
+
+    @Test
+    public void bareWordsAreFreeText() throws ParseException {
+        Query query = QueryParser.parse("ali \"new yo\"");
+
+        Query.And and = (Query.And) query;
+        assertEquals("ali", ((Query.Word) and.children.get(0)).prefix);
+        assertEquals("new yo", ((Query.Word) and.children.get(1)).prefix);
+    }
+
+    @Test
+    public void toStringParsesBackToTheSameQuery() throws ParseException {
+        String[] texts = {
+                "person:a OR person:b AND location:c",
+                "NOT (person:a OR location:\"new york\") ali",
+                "location:\"back\\\\slash \\\"quoted\\\"\"",
+                "(a OR b) (c OR NOT d)",
+        };
+        for (String text : texts) {
+            String printed = QueryParser.parse(text).toString();
+            assertEquals(printed, QueryParser.parse(printed).toString());
+        }
+    }
+
+    @Test
+    public void errorsPointAtTheOffendingCharacter() {
+        assertError("", "Empty query", 0);
+        assertError("   ", "Empty query", 0);
+        assertError("person:a AND", "Expected a term", 12);
+        assertError("person:a OR OR person:b", "Expected a term", 12);
+        assertError("AND person:a", "Expected a term", 0);
+        assertError("person:", "Missing value for person", 7);
+        assertError("\"\"", "Empty quotes", 2);
+        assertError("person:a )", "Unexpected ')'", 9);
+    }
+
+    @Test
+    public void unbalancedParenthesesAreErrors() {
+        assertError("(person:a", "Missing ')'", 9);
+        assertError("((person:a) OR person:b", "Missing ')'", 23);
+        assertError("person:a)", "Unexpected ')'", 8);
+        assertError("()", "Expected a term", 1);
+    }
+
+    @Test
+    public void unbalancedQuotesAreErrors() {
+        assertError("location:\"new york", "Missing closing quote", 9);
+        assertError("person:a \"new", "Missing closing quote", 9);
+        assertError("location:\"new york\\\"", "Missing closing quote", 9);
+    }
+
+    private static void assertError(String text, String message, int offset) {
+        try {
+            fail("Parsed \"" + text + "\" as " + QueryParser.parse(text));
+        } catch (ParseException e) {
+            assertEquals(text, message, e.getMessage());
+            assertEquals(text, offset, e.getErrorOffset());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.softmeth.androidphotos.search;
+
+import com.softmeth.androidphotos.models.Album;
+import com.softmeth.androidphotos.models.Photo;
+import com.softmeth.androidphotos.models.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.*;
+
+public class QueryPlanTest {
+    private static final String[] PEOPLE = {"alice", "bob", "carol", "dan"};
+    private static final String[] PLACES = {"nyc", "paris", "rome"};
+
+    private List<Photo> photos;
+    private TagIndex index;
+
+    @Before
+    public void setUp() {
+        // id 0: alice@nyc, 1: bob@nyc, 2: alice+bob@paris, 3: carol, 4: untagged
+        photos = new ArrayList<>();
+        photos.add(photo(0, "person", "alice", "location", "nyc"));
+        photos.add(photo(1, "person", "bob", "location", "nyc"));
+        photos.add(photo(2, "person", "alice", "person", "bob", "location", "paris"));
+        photos.add(photo(3, "person", "carol"));
+        photos.add(photo(4));
+        index = index(photos);
+    }
+
+    @Test
+    public void termsMatchIgnoringCase() throws ParseException {
+        assertEquals(ids(0, 2), run("person:ALICE"));
+        assertEquals(ids(), run("person:nobody"));
+    }
+
+    @Test
+    public void andIntersectsAndOrUnites() throws ParseException {
+        assertEquals(ids(2), run("person:alice person:bob"));
+        assertEquals(ids(0, 1, 2), run("person:alice OR location:nyc"));
+        assertEquals(ids(0, 2), run("person:alice AND (location:nyc OR location:paris)"));
+    }
+
+    @Test
+    public void andWithNotSubtracts() throws ParseException {
+        assertEquals(ids(0), run("person:alice AND NOT person:bob"));
+        assertEquals(ids(1), run("location:nyc NOT person:alice"));
+        assertEquals(ids(), run("person:alice NOT person:alice"));
+    }
+
+    @Test
+    public void loneNotMatchesEveryOtherLivePhoto() throws ParseException {
+        assertEquals(ids(1, 3, 4), run("NOT person:alice"));
+
+        // Removed photos must not come back through NOT
+        index.removePhoto(photos.get(3));
+        assertEquals(ids(1, 4), run("NOT person:alice"));
+        assertEquals(ids(0, 1, 2, 4), run("NOT person:nobody"));
+    }
+
+    @Test
+    public void andWithAnOperandThatCannotMatchIsEmptyUpFront() throws ParseException {
+        QueryPlan plan = QueryPlan.compile(QueryParser.parse("person:alice person:nobody"), index);
+
+        assertEquals(0, plan.estimate());
+        assertTrue(plan.execute().isEmpty());
+    }
+
+    @Test
+    public void andRunsItsSmallestOperandFirst() throws ParseException {
+        QueryPlan plan = QueryPlan.compile(QueryParser.parse("location:nyc person:carol person:alice"), index);
+
+        assertEquals(1, plan.estimate());
+        assertTrue(plan.toString(), plan.toString().startsWith("AND[1](person:\"carol\""));
+    }
+
+    @Test
+    public void orEstimateIsTheSumOfItsOperands() throws ParseException {
+        QueryPlan plan = QueryPlan.compile(QueryParser.parse("person:alice OR location:nyc OR person:nobody"), index);
+
+        assertEquals(4, plan.estimate());
+        assertEquals(ids(0, 1, 2), toSet(plan.execute()));
+    }
+
+    @Test
+    public void skewedAndTakesTheProbePath() throws ParseException {
+        // One rare tag against one on every photo: more than 16 to 1
+        List<Photo> many = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            many.add(i % 50 == 7 ? photo(i, "location", "home", "person", "rare")
+                    : photo(i, "location", "home"));
+        }
+        TagIndex large = index(many);
+
+        QueryPlan plan = QueryPlan.compile(QueryParser.parse("location:home person:rare"), large);
+        assertEquals(ids(7, 57), toSet(plan.execute()));
+    }
+
+    @Test
+    public void freeTextMatchesEveryValueWithThePrefix() throws ParseException {
+        List<Photo> many = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            many.add(photo(i, "person", "name" + i));
+        }
+        many.add(photo(200, "location", "nowhere"));
+        TagIndex large = index(many);
+
+        assertEquals(200, QueryPlan.compile(QueryParser.parse("NAME"), large).execute().size());
+        assertEquals(201, QueryPlan.compile(QueryParser.parse("n"), large).execute().size());
+    }
+
+    @Test
+    public void interruptedThreadStopsTheSearch() throws ParseException {
+        Query query = QueryParser.parse("person:alice OR location:nyc");
+        Thread.currentThread().interrupt();
+        try {
+            index.search(query);
+            fail("Search ran while interrupted");
+        } catch (CancellationException expected) {
+            assertTrue(Thread.interrupted());  // Still set for the caller; cleared here
+        }
+        // Nothing half-done was cached
+        assertEquals(3, index.search(query).size());
+    }
+
+    @Test
+    public void plansMatchBruteForce() throws ParseException {
+        Random random = new Random(7);
+        List<Photo> many = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Photo photo = new Photo("content://photos/" + i, i + ".jpg");
+            for (int j = 0; j < 3; j++) {
+                if (random.nextInt(3) == 0) {
+                    photo.addTag("person", PEOPLE[random.nextInt(PEOPLE.length)]);
+                }
+                if (random.nextInt(4) == 0) {
+                    photo.addTag("location", PLACES[random.nextInt(PLACES.length)]);
+                }
+            }
+            many.add(photo);
+        }
+        TagIndex large = index(many);
+        large.removePhoto(many.get(5));
+
+        for (int round = 0; round < 1000; round++) {
+            Query query = QueryParser.parse(randomQuery(random, 0) + " OR " + randomQuery(random, 0));
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int i = 0; i < many.size(); i++) {
+                if (i != 5 && matches(query, many.get(i))) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(query.toString(), expected, toSet(QueryPlan.compile(query, large).execute()));
+        }
+    }
+
+    private TreeSet<Integer> run(String text) throws ParseException {
+        return toSet(QueryPlan.compile(QueryParser.parse(text), index).execute());
+    }
+
+    private static TagIndex index(List<Photo> photos) {
+        List<Album> albums = new ArrayList<>();
+        albums.add(new Album("All", new ArrayList<>(photos)));
+        return new TagIndex(albums);
+    }
+
+    private static Photo photo(int n, String... tags) {
+        Photo photo = new Photo("content://photos/" + n, n + ".jpg");
+        for (int i = 0; i < tags.length; i += 2) {
+            photo.addTag(tags[i], tags[i + 1]);
+        }
+        return photo;
+    }
+
+    private static TreeSet<Integer> ids(Integer... ids) {
+        TreeSet<Integer> set = new TreeSet<>();
+        Collections.addAll(set, ids);
+        return set;
+    }
+
+    private static TreeSet<Integer> toSet(PostingList list) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int i = 0; i < list.size(); i++) {
+            set.add(list.get(i));
+        }
+        return set;
+    }
+
+    private static String randomQuery(Random random, int depth) {
+        int kind = depth > 2 ? 2 : random.nextInt(5);
+        if (kind == 0) {
+            return "NOT " + randomQuery(random, depth + 1);
+        }
+        if (kind == 1) {
+            String operator = random.nextBoolean() ? " AND " : random.nextBoolean() ? " or " : " ";
+            return "(" + randomQuery(random, depth + 1) + operator + randomQuery(random, depth + 1) + ")";
+        }
+        switch (random.nextInt(4)) {
+            case 0:
+                return PEOPLE[random.nextInt(PEOPLE.length)].substring(0, 1 + random.nextInt(3));
+            case 1:
+                return "person:" + PEOPLE[random.nextInt(PEOPLE.length)].toUpperCase(Locale.ROOT);
+            default:
+                return "location:\"" + PLACES[random.nextInt(PLACES.length)] + "\"";
+        }
+    }
+
+    private static boolean matches(Query query, Photo photo) {
+        if (query instanceof Query.Term) {
+            Query.Term term = (Query.Term) query;
+            return photo.hasTag(term.name, term.value);
+        }
+        if (query instanceof Query.Word) {
+            String prefix = ((Query.Word) query).prefix.toLowerCase(Locale.ROOT);
+            for (Tag tag : photo.getTags()) {
+                if (tag.getValue().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (query instanceof Query.Not) {
+            return !matches(((Query.Not) query).child, photo);
+        }
+        if (query instanceof Query.And) {
+            for (Query child : ((Query.And) query).children) {
+                if (!matches(child, photo)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (Query child : ((Query.Or) query).children) {
+            if (matches(child, photo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,151 @@
+package com.softmeth.androidphotos.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class TagValueTrieTest {
+
+    @Test
+    public void completesMostUsedFirst() {
+        TagValueTrie trie = trie("alice", "alan", "alan", "albert", "albert", "albert", "bob");
+
+        assertEquals(Arrays.asList("albert", "alan", "alice"), trie.complete("al", 10));
+        assertEquals(Arrays.asList("albert", "alan"), trie.complete("al", 2));
+        assertEquals(Arrays.asList("bob"), trie.complete("b", 10));
+        assertEquals(4, trie.size());
+    }
+
+    @Test
+    public void equalCountsComeBackAlphabetically() {
+        TagValueTrie trie = trie("Carol", "alice", "Bob", "dan", "dan");
+
+        assertEquals(Arrays.asList("dan", "alice", "Bob", "Carol"), trie.complete("", 10));
+    }
+
+    @Test
+    public void matchingIgnoresCaseAndKeepsTheFirstSpelling() {
+        TagValueTrie trie = trie("New York", "new york", "NEW YORK");
+
+        assertEquals(Arrays.asList("New York"), trie.complete("NEW", 10));
+        assertEquals(Arrays.asList("New York"), trie.complete("new y", 10));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void missingPrefixOrZeroLimitGivesNothing() {
+        TagValueTrie trie = trie("alice");
+
+        assertTrue(trie.complete("bob", 10).isEmpty());
+        assertTrue(trie.complete("alicee", 10).isEmpty());
+        assertTrue(trie.complete("a", 0).isEmpty());
+        assertTrue(new TagValueTrie().complete("", 10).isEmpty());
+    }
+
+    @Test
+    public void removeLowersTheCountAndDropsUnusedValues() {
+        TagValueTrie trie = trie("alan", "alan", "alice");
+
+        trie.remove("ALAN");
+        assertEquals(Arrays.asList("alan", "alice"), trie.complete("al", 10));
+        trie.remove("alan");
+        assertEquals(Arrays.asList("alice"), trie.complete("al", 10));
+        assertEquals(1, trie.size());
+
+        // Removing what is not there changes nothing
+        trie.remove("alan");
+        trie.remove("zed");
+        trie.remove("al");
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void removedValuesCanComeBackWithANewSpelling() {
+        TagValueTrie trie = trie("paris");
+        trie.remove("paris");
+        assertTrue(trie.complete("p", 10).isEmpty());
+
+        trie.add("Paris");
+        assertEquals(Arrays.asList("Paris"), trie.complete("p", 10));
+    }
+
+    @Test
+    public void removingAPrefixValueKeepsLongerOnes() {
+        TagValueTrie trie = trie("ann", "anna", "anna");
+
+        trie.remove("ann");
+        assertEquals(Arrays.asList("anna"), trie.complete("ann", 10));
+        trie.remove("anna");
+        trie.remove("anna");
+        assertTrue(trie.complete("", 10).isEmpty());
+        assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void valuesWithPrefixFindsTheWholeSubtree() {
+        TagValueTrie trie = trie("name1", "name2", "Name30", "nomad", "other");
+
+        assertEquals(new TreeSet<>(Arrays.asList("name1", "name2", "Name30")),
+                new TreeSet<>(trie.valuesWithPrefix("NAME")));
+        assertEquals(4, trie.valuesWithPrefix("n").size());
+        assertEquals(5, trie.valuesWithPrefix("").size());
+        assertTrue(trie.valuesWithPrefix("x").isEmpty());
+    }
+
+    @Test
+    public void completeMatchesBruteForce() {
+        Random random = new Random(11);
+        TagValueTrie trie = new TagValueTrie();
+        Map<String, Integer> counts = new HashMap<>();
+        String letters = "abc";
+        for (int round = 0; round < 3000; round++) {
+            StringBuilder value = new StringBuilder();
+            int length = 1 + random.nextInt(4);
+            for (int i = 0; i < length; i++) {
+                value.append(letters.charAt(random.nextInt(letters.length())));
+            }
+            String key = value.toString();
+            if (random.nextInt(3) == 0) {
+                trie.remove(key);
+                counts.computeIfPresent(key, (k, n) -> n == 1 ? null : n - 1);
+            } else {
+                trie.add(key);
+                counts.merge(key, 1, Integer::sum);
+            }
+
+            String prefix = key.substring(0, random.nextInt(key.length() + 1));
+            int limit = 1 + random.nextInt(6);
+            assertEquals(prefix, expected(counts, prefix, limit), trie.complete(prefix, limit));
+        }
+        assertEquals(counts.size(), trie.size());
+    }
+
+    private static List<String> expected(Map<String, Integer> counts, String prefix, int limit) {
+        List<String> values = new ArrayList<>();
+        for (String value : counts.keySet()) {
+            if (value.startsWith(prefix.toLowerCase(Locale.ROOT))) {
+                values.add(value);
+            }
+        }
+        values.sort((a, b) -> counts.get(a).equals(counts.get(b))
+                ? a.compareToIgnoreCase(b) : Integer.compare(counts.get(b), counts.get(a)));
+        return values.subList(0, Math.min(limit, values.size()));
+    }
+
+    private static TagValueTrie trie(String... values) {
+        TagValueTrie trie = new TagValueTrie();
+        for (String value : values) {
+            trie.add(value);
+        }
+        return trie;
+    }
+}